@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+/** Snapshot of the counters maintained by the object existence filters. */
+public class BloomFilterStats {
+	private final long rejectCount;
+
+	private final long falsePositiveCount;
+
+	private final long passCount;
+
+	private final int filterCount;
+
+	BloomFilterStats(long rejectCount, long falsePositiveCount,
+			long passCount, int filterCount) {
+		this.rejectCount = rejectCount;
+		this.falsePositiveCount = falsePositiveCount;
+		this.passCount = passCount;
+		this.filterCount = filterCount;
+	}
+
+	/** @return lookups answered as missing without asking the cluster. */
+	public long getRejectCount() {
+		return rejectCount;
+	}
+
+	/** @return lookups the filter passed but the cluster did not have. */
+	public long getFalsePositiveCount() {
+		return falsePositiveCount;
+	}
+
+	/** @return lookups the filter passed on to the cluster. */
+	public long getPassCount() {
+		return passCount;
+	}
+
+	/**
+	 * @return observed false positive rate: the fraction of missing objects
+	 *         that the filter failed to reject, 0.0 to 1.0.
+	 */
+	public double getFalsePositiveRate() {
+		long missing = rejectCount + falsePositiveCount;
+		return missing == 0 ? 0.0 : ((double) falsePositiveCount) / missing;
+	}
+
+	/** @return number of repository filters loaded in memory. */
+	public int getFilterCount() {
+		return filterCount;
+	}
+
+	@Override
+	public String toString() {
+		return "BloomFilterStats[rejects=" + rejectCount //
+				+ ", falsePositives=" + falsePositiveCount //
+				+ ", passes=" + passCount //
+				+ ", filters=" + filterCount + "]";
+	}
+}
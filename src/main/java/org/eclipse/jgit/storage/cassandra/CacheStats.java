@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+/** Snapshot of the counters maintained by a client side cache. */
+public class CacheStats {
+	private final long hitCount;
+
+	private final long missCount;
+
+	private final long evictionCount;
+
+	private final long entryCount;
+
+	private final long weight;
+
+	private final long limit;
+
+	CacheStats(long hitCount, long missCount, long evictionCount,
+			long entryCount, long weight, long limit) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.evictionCount = evictionCount;
+		this.entryCount = entryCount;
+		this.weight = weight;
+		this.limit = limit;
+	}
+
+	/** @return number of lookups answered by the cache. */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/** @return number of lookups that had to go to the cluster. */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/** @return fraction of lookups answered by the cache, 0.0 to 1.0. */
+	public double getHitRatio() {
+		long total = hitCount + missCount;
+		return total == 0 ? 0.0 : ((double) hitCount) / total;
+	}
+
+	/** @return number of entries discarded to make room for others. */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/** @return number of entries currently held. */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/** @return current weight of the cache, in bytes. */
+	public long getWeight() {
+		return weight;
+	}
+
+	/** @return maximum weight of the cache, in bytes. */
+	public long getLimit() {
+		return limit;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats[hits=" + hitCount //
+				+ ", misses=" + missCount //
+				+ ", evictions=" + evictionCount //
+				+ ", entries=" + entryCount //
+				+ ", weight=" + weight //
+				+ ", limit=" + limit + "]";
+	}
+}
@@ -43,8 +43,13 @@
 
 package org.eclipse.jgit.storage.cassandra;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
 import me.prettyprint.cassandra.service.FailoverPolicy;
@@ -53,12 +58,17 @@ import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.ConsistencyLevelPolicy;
 import me.prettyprint.hector.api.HConsistencyLevel;
 import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.ResultStatus;
 import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.MutationResult;
 import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.Query;
+import me.prettyprint.hector.api.query.QueryResult;
 
 import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
 import org.eclipse.jgit.storage.dht.spi.ChunkTable;
 import org.eclipse.jgit.storage.dht.spi.Context;
 import org.eclipse.jgit.storage.dht.spi.Database;
@@ -77,10 +87,49 @@ import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
 public class CassandraDatabase implements Database {
 	static final BytesArraySerializer S = BytesArraySerializer.get();
 
+	/** Milliseconds shutdown() lets queued work finish before failing it. */
+	private static final long SHUTDOWN_WAIT = 30 * 1000;
+
 	private final Cluster cluster;
 
 	private final ExecutorService executors;
 
+	private final int readBatchKeys;
+
+	private final long readBatchBytes;
+
+	private final int readConcurrency;
+
+	private final long objectIndexBatchWindow;
+
+	private final int objectIndexColumnLimit;
+
+	private final int objectIndexMaxInfos;
+
+	private final int chunkPageSize;
+
+	private final long readAheadSize;
+
+	private final CsHedge hedge;
+
+	private final CsLatencyBalancingPolicy latencyPolicy;
+
+	private final Keyspace keyspaceDowngrade;
+
+	private final AtomicLong downgrades = new AtomicLong();
+
+	private final CsWritePolicy writePolicy;
+
+	private final CsWriteWindow writeWindow;
+
+	private final CsTokenRing tokenRing;
+
+	private final int writeRetryAttempts;
+
+	private final long writeRetryBackoff;
+
+	private final int writeRetryBudget;
+
 	private final Keyspace keyspaceFastMissingOk;
 
 	private final Keyspace keyspaceLocal;
@@ -97,12 +146,58 @@ public class CassandraDatabase implements Database {
 
 	private final CsObjectIndexTable objectIndex;
 
-	CassandraDatabase(CassandraDatabaseBuilder builder) {
+	private final CsChunkCache chunkCache;
+
+	private final CsDiskChunkCache diskChunkCache;
+
+	private final CsObjectIndexCache objectIndexCache;
+
+	private final CsObjectBloom objectBloom;
+
+	private final ExecutorService readExecutor;
+
+	private final ExecutorService writeExecutor;
+
+	private final ExecutorService backgroundExecutor;
+
+	CassandraDatabase(CassandraDatabaseBuilder builder) throws DhtException {
 		this.cluster = builder.getCluster();
 		this.executors = builder.getExecutorService();
+		this.readExecutor = pool("reads", builder.getReadThreads(), builder);
+		this.writeExecutor = pool("writes", builder.getWriteThreads(), builder);
+		this.backgroundExecutor = pool("background",
+				builder.getBackgroundThreads(), builder);
+		this.readBatchKeys = builder.getReadBatchKeys();
+		this.readBatchBytes = builder.getReadBatchBytes();
+		this.readConcurrency = builder.getReadConcurrency();
+		this.objectIndexBatchWindow = builder.getObjectIndexBatchWindow();
+		this.objectIndexColumnLimit = builder.getObjectIndexColumnLimit();
+		this.objectIndexMaxInfos = builder.getObjectIndexMaxInfos();
+		this.chunkPageSize = builder.getChunkPageSize();
+		this.readAheadSize = builder.getReadAheadSize();
+		this.latencyPolicy = builder.getLatencyPolicy();
+
+		if (0 < builder.getHedgeReadPercentile())
+			hedge = new CsHedge(builder.getHedgeReadPercentile(),
+					builder.getHedgeReadMinDelay(), 2 * Math.max(
+							builder.getReadThreads(), Runtime.getRuntime()
+									.availableProcessors()));
+		else
+			hedge = null;
+		this.writePolicy = new CsWritePolicy(builder);
+		this.writeWindow = new CsWriteWindow(builder.getWriteInFlightBytes(),
+				builder.getWriteInFlightBatches());
+		this.writeRetryAttempts = builder.getWriteRetryAttempts();
+		this.writeRetryBackoff = builder.getWriteRetryBackoff();
+		this.writeRetryBudget = builder.getWriteRetryBudget();
 
 		String keyspaceName = builder.getKeyspaceName();
 
+		if (builder.isWriteTokenAware())
+			tokenRing = new CsTokenRing(cluster, keyspaceName);
+		else
+			tokenRing = null;
+
 		keyspaceFastMissingOk = HFactory.createKeyspace(keyspaceName, cluster,
 				new FastMissingOk(), FailoverPolicy.FAIL_FAST);
 
@@ -115,6 +210,39 @@ public class CassandraDatabase implements Database {
 		else
 			keyspaceLocal = keyspaceReadRepair;
 
+		if (builder.isDowngradeChunkReads())
+			keyspaceDowngrade = HFactory.createKeyspace(keyspaceName,
+					cluster, new FastMissingOk(),
+					FailoverPolicy.ON_FAIL_TRY_ALL_AVAILABLE);
+		else
+			keyspaceDowngrade = null;
+
+		if (0 < builder.getChunkCacheSize())
+			chunkCache = new CsChunkCache(builder.getChunkCacheSize());
+		else
+			chunkCache = null;
+
+		if (builder.getDiskChunkCacheDirectory() != null
+				&& 0 < builder.getDiskChunkCacheSize())
+			diskChunkCache = new CsDiskChunkCache(
+					builder.getDiskChunkCacheDirectory(),
+					builder.getDiskChunkCacheSize());
+		else
+			diskChunkCache = null;
+
+		if (0 < builder.getObjectIndexCacheSize())
+			objectIndexCache = new CsObjectIndexCache(
+					builder.getObjectIndexCacheSize(),
+					builder.getObjectIndexCacheTimeout(),
+					builder.getObjectIndexMissingTimeout());
+		else
+			objectIndexCache = null;
+
+		if (0 < builder.getBloomFilterSize())
+			objectBloom = new CsObjectBloom(this, builder.getBloomFilterSize());
+		else
+			objectBloom = null;
+
 		repositoryIndex = new CsRepositoryIndexTable(this);
 		repository = new CsRepositoryTable(this);
 		ref = new CsRefTable(this);
@@ -124,7 +252,23 @@ public class CassandraDatabase implements Database {
 
 	/** Shutdown the connection(s) to the cluster. */
 	public void shutdown() {
+		chunk.shutdown();
+		objectIndex.shutdown();
+
+		// Writes may still queue background work, so stop that pool last.
+		long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+		for (ExecutorService pool : new ExecutorService[] { readExecutor,
+				writeExecutor, backgroundExecutor }) {
+			if (pool instanceof CsThreadPool) {
+				long left = deadline - System.currentTimeMillis();
+				((CsThreadPool) pool).shutdown(Math.max(0, left));
+			}
+		}
+		if (hedge != null)
+			hedge.shutdown();
 		cluster.getConnectionManager().shutdown();
+		if (diskChunkCache != null)
+			diskChunkCache.close();
 	}
 
 	public RepositoryIndexTable repositoryIndex() {
@@ -147,8 +291,165 @@ public class CassandraDatabase implements Database {
 		return objectIndex;
 	}
 
+	/** @return current counters of the in-process chunk cache. */
+	public CacheStats getChunkCacheStats() {
+		if (chunkCache != null)
+			return chunkCache.getStatistics();
+		return new CacheStats(0, 0, 0, 0, 0, 0);
+	}
+
+	/** @return current counters of the local disk chunk cache. */
+	public CacheStats getDiskChunkCacheStats() {
+		if (diskChunkCache != null)
+			return diskChunkCache.getStatistics();
+		return new CacheStats(0, 0, 0, 0, 0, 0);
+	}
+
+	/** @return current counters of the ObjectIndex lookup cache. */
+	public CacheStats getObjectIndexCacheStats() {
+		if (objectIndexCache != null)
+			return objectIndexCache.getStatistics();
+		return new CacheStats(0, 0, 0, 0, 0, 0);
+	}
+
+	/** @return widths of the ObjectIndex rows read so far. */
+	public ObjectIndexRowStats getObjectIndexRowStats() {
+		return objectIndex.getRowStats();
+	}
+
+	/** @return current counters of the object existence filters. */
+	public BloomFilterStats getBloomFilterStats() {
+		if (objectBloom != null)
+			return objectBloom.getStatistics();
+		return new BloomFilterStats(0, 0, 0, 0);
+	}
+
+	/**
+	 * @return number of chunk, ObjectIndex and Ref reads that were served by
+	 *         an identical query already in flight from another thread.
+	 */
+	public long getCoalescedReadCount() {
+		return chunk.getCoalescedCount() + objectIndex.getCoalescedCount()
+				+ ref.getCoalescedCount();
+	}
+
+	/** @return number of chunks read ahead because of prefetch hints. */
+	public long getReadAheadCount() {
+		CsReadAhead ra = chunk.getReadAhead();
+		return ra != null ? ra.getIssuedCount() : 0;
+	}
+
+	/** @return number of hinted chunks not read ahead for lack of budget. */
+	public long getReadAheadDroppedCount() {
+		CsReadAhead ra = chunk.getReadAhead();
+		return ra != null ? ra.getDroppedCount() : 0;
+	}
+
+	/** @return number of slow reads that were sent a second time. */
+	public long getHedgedReadCount() {
+		return hedge != null ? hedge.getHedgedCount() : 0;
+	}
+
+	/** @return number of hedged reads answered first by the second copy. */
+	public long getHedgedReadWonCount() {
+		return hedge != null ? hedge.getWonCount() : 0;
+	}
+
+	/**
+	 * @return recent average latency of each host in milliseconds, if
+	 *         operations are balanced by latency; otherwise empty.
+	 */
+	public Map<String, Double> getHostLatencies() {
+		if (latencyPolicy != null)
+			return latencyPolicy.getLatencies();
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * @return state of the read, write and background pools that were given
+	 *         their own threads; empty if all work shares one executor.
+	 */
+	public List<PoolStats> getPoolStats() {
+		List<PoolStats> r = new ArrayList<PoolStats>(3);
+		for (ExecutorService pool : new ExecutorService[] { readExecutor,
+				writeExecutor, backgroundExecutor }) {
+			if (pool instanceof CsThreadPool)
+				r.add(((CsThreadPool) pool).getStatistics());
+		}
+		return r;
+	}
+
+	/**
+	 * @return number of chunk reads that timed out at quorum and were served
+	 *         at consistency ONE.
+	 */
+	public long getConsistencyDowngradeCount() {
+		return downgrades.get();
+	}
+
+	/**
+	 * @return average number of ObjectIndex lookups combined into one
+	 *         multiget; 0 if lookups are not batched.
+	 */
+	public double getObjectIndexBatchSize() {
+		return objectIndex.getAverageBatchSize();
+	}
+
+	/**
+	 * Recreate a repository's object existence filter from the ObjectIndex.
+	 * <p>
+	 * This scans the entire ObjectIndex family, and should be run when the
+	 * filters are first enabled, or when a repository has grown well past the
+	 * size its filter was created for.
+	 *
+	 * @param repo
+	 *            the repository to rebuild the filter of.
+	 * @return number of objects in the new filter.
+	 * @throws DhtException
+	 *             the ObjectIndex cannot be read, the filter cannot be
+	 *             written, or filters are disabled.
+	 */
+	public long rebuildBloomFilter(RepositoryKey repo) throws DhtException {
+		if (objectBloom == null)
+			throw new DhtException("Bloom filters are not enabled");
+		return objectBloom.rebuild(repo);
+	}
+
+	/**
+	 * @return bytes at which a write batch is currently sent; varies over time
+	 *         if the batch size is adaptive.
+	 */
+	public int getWriteBatchSize() {
+		return writePolicy.getBatchSize();
+	}
+
+	/** @return number of write batches that failed with a timeout. */
+	public long getWriteTimeoutCount() {
+		return writePolicy.getTimeoutCount();
+	}
+
+	/** @return number of times a failed write batch was sent again. */
+	public long getWriteRetryCount() {
+		return writePolicy.getRetryCount();
+	}
+
+	/** @return bytes of write batches currently being sent to the cluster. */
+	public long getWriteInFlightBytes() {
+		return writeWindow.getBytes();
+	}
+
+	/** @return number of times a writer waited for batches in flight. */
+	public long getWriteBlockedCount() {
+		return writeWindow.getBlockedCount();
+	}
+
+	/** @return total milliseconds writers waited for batches in flight. */
+	public long getWriteBlockedTime() {
+		return writeWindow.getBlockedMillis();
+	}
+
 	public WriteBuffer newWriteBuffer() {
-		return new CsBuffer(this, 10 * 1024 * 1024);
+		return new CsBuffer(this, writePolicy);
 	}
 
 	Keyspace getKeyspace(Context context) {
@@ -164,12 +465,153 @@ public class CassandraDatabase implements Database {
 		}
 	}
 
+	CsChunkCache getChunkCache() {
+		return chunkCache;
+	}
+
+	CsDiskChunkCache getDiskChunkCache() {
+		return diskChunkCache;
+	}
+
+	CsObjectIndexCache getObjectIndexCache() {
+		return objectIndexCache;
+	}
+
+	CsObjectBloom getObjectBloom() {
+		return objectBloom;
+	}
+
+	CsWriteWindow getWriteWindow() {
+		return writeWindow;
+	}
+
+	CsTokenRing getTokenRing() {
+		return tokenRing;
+	}
+
+	CsWriteRetry newWriteRetry() {
+		return new CsWriteRetry(writeRetryAttempts, writeRetryBackoff,
+				writeRetryBudget);
+	}
+
 	ExecutorService getExecutorService() {
 		return executors;
 	}
 
+	ExecutorService getReadExecutor() {
+		return readExecutor;
+	}
+
+	ExecutorService getWriteExecutor() {
+		return writeExecutor;
+	}
+
+	ExecutorService getBackgroundExecutor() {
+		return backgroundExecutor;
+	}
+
+	private ExecutorService pool(String name, int threads,
+			CassandraDatabaseBuilder builder) {
+		if (0 < threads)
+			return new CsThreadPool(name, threads, builder.getPoolQueueSize());
+		return executors;
+	}
+
+	/**
+	 * Compute the number of keys to read in one multiget.
+	 *
+	 * @param expectedRowSize
+	 *            typical size of a row of the family being read, in bytes.
+	 * @return maximum number of keys per sub-batch.
+	 */
+	int getReadBatchSize(int expectedRowSize) {
+		long n = Math.min(readBatchKeys, readBatchBytes / expectedRowSize);
+		return (int) Math.max(1, n);
+	}
+
+	int getReadConcurrency() {
+		return readConcurrency;
+	}
+
+	long getObjectIndexBatchWindow() {
+		return objectIndexBatchWindow;
+	}
+
+	int getObjectIndexColumnLimit() {
+		return objectIndexColumnLimit;
+	}
+
+	int getObjectIndexMaxInfos() {
+		return objectIndexMaxInfos;
+	}
+
+	int getChunkPageSize() {
+		return chunkPageSize;
+	}
+
+	long getReadAheadSize() {
+		return readAheadSize;
+	}
+
+	CsHedge getHedge() {
+		return hedge;
+	}
+
+	/**
+	 * Get the keyspace to retry a timed out read of immutable data with.
+	 *
+	 * @param keyspace
+	 *            keyspace of the read that timed out.
+	 * @return keyspace reading at consistency ONE; null if downgrades are
+	 *         disabled or the read already used ONE.
+	 */
+	Keyspace getDowngradeKeyspace(Keyspace keyspace) {
+		if (keyspace == keyspaceFastMissingOk || keyspace == keyspaceDowngrade)
+			return null;
+		return keyspaceDowngrade;
+	}
+
+	void downgraded() {
+		downgrades.incrementAndGet();
+	}
+
+	/**
+	 * Record the host and latency of an operation, for balancing by latency.
+	 *
+	 * @param result
+	 *            result of the operation.
+	 * @return {@code result}
+	 */
+	private <T extends ResultStatus> T record(T result) {
+		if (latencyPolicy != null)
+			latencyPolicy.record(result);
+		return result;
+	}
+
+	/**
+	 * Execute a query, recording its latency.
+	 *
+	 * @param q
+	 *            the query.
+	 * @return the query's result.
+	 */
+	<T> QueryResult<T> execute(Query<T> q) {
+		return record(q.execute());
+	}
+
+	/**
+	 * Execute a mutation, recording its latency.
+	 *
+	 * @param op
+	 *            the mutation.
+	 * @return the mutation's result.
+	 */
+	MutationResult execute(Mutator<byte[]> op) {
+		return record(op.execute());
+	}
+
 	Future<?> submit(Runnable task) {
-		return getExecutorService().submit(task);
+		return getBackgroundExecutor().submit(task);
 	}
 
 	void put(String columnFamily, byte[] key, byte[] col, byte[] val)
@@ -177,7 +619,7 @@ public class CassandraDatabase implements Database {
 		try {
 			Mutator<byte[]> op = createMutator();
 			addInsertion(op, columnFamily, key, col, val);
-			op.execute();
+			execute(op);
 		} catch (HectorException err) {
 			throw new DhtException(err);
 		}
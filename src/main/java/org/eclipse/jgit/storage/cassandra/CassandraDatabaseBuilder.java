@@ -43,6 +43,7 @@
 
 package org.eclipse.jgit.storage.cassandra;
 
+import java.io.File;
 import java.net.URISyntaxException;
 import java.util.concurrent.ExecutorService;
 
@@ -50,11 +51,16 @@ import me.prettyprint.cassandra.service.CassandraHostConfigurator;
 import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.factory.HFactory;
 
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.storage.dht.DhtException;
 import org.eclipse.jgit.storage.dht.spi.util.ExecutorTools;
 import org.eclipse.jgit.transport.URIish;
 
 /** Constructs a {@link CassandraDatabase} instance. */
 public class CassandraDatabaseBuilder {
+	/** Objects a filter is sized for when no size is configured. */
+	public static final long DEFAULT_BLOOM_FILTER_SIZE = 1000000;
+
 	private String hosts;
 
 	private String clusterName;
@@ -67,8 +73,99 @@ public class CassandraDatabaseBuilder {
 
 	private ExecutorService executorService;
 
-	public CassandraDatabaseBuilder setURI(final String url)
+	private long chunkCacheSize;
+
+	private File diskChunkCacheDirectory;
+
+	private long diskChunkCacheSize;
+
+	private int objectIndexCacheSize;
+
+	private long objectIndexCacheTimeout = 5 * 60 * 1000;
+
+	private long objectIndexMissingTimeout = 30 * 1000;
+
+	private long bloomFilterSize;
+
+	private int readBatchKeys = 256;
+
+	private long readBatchBytes = 8 * 1024 * 1024;
+
+	private int readConcurrency = 4;
+
+	private long objectIndexBatchWindow;
+
+	private int objectIndexColumnLimit = 1000;
+
+	private int objectIndexMaxInfos;
+
+	private int writeBufferSize = 10 * 1024 * 1024;
+
+	private int writeBatchMutations;
+
+	private long writeBatchLinger;
+
+	private boolean writeBatchAdaptive;
+
+	private long writeBatchLatency = 250;
+
+	private long writeInFlightBytes = 64 * 1024 * 1024;
+
+	private int writeInFlightBatches = 16;
+
+	private boolean writeTokenAware;
+
+	private int writeRetryAttempts = 3;
+
+	private long writeRetryBackoff = 100;
+
+	private int writeRetryBudget = 16;
+
+	private long thriftFrameSize = 15 * 1024 * 1024;
+
+	private int chunkPageSize;
+
+	private long readAheadSize;
+
+	private int hedgeReadPercentile;
+
+	private long hedgeReadMinDelay = 5;
+
+	private boolean latencyAwareHosts;
+
+	private CsLatencyBalancingPolicy latencyPolicy;
+
+	private boolean downgradeChunkReads;
+
+	private int readThreads;
+
+	private int writeThreads;
+
+	private int backgroundThreads;
+
+	private int poolQueueSize = 1024;
+
+	/**
+	 * Configure the connection from a {@code git+cassandra://} URI.
+	 * <p>
+	 * Options of the {@code cassandra} configuration section may be given as
+	 * query parameters, for example
+	 * {@code git+cassandra://host/cluster/keyspace?writeBufferSize=4m}.
+	 *
+	 * @param url
+	 *            the URI of the keyspace, or of a repository in it.
+	 * @return {@code this}
+	 * @throws URISyntaxException
+	 *             the URI cannot be parsed.
+	 */
+	public CassandraDatabaseBuilder setURI(String url)
 			throws URISyntaxException {
+		int q = url.indexOf('?');
+		if (0 <= q) {
+			fromQuery(url.substring(q + 1));
+			url = url.substring(0, q);
+		}
+
 		URIish u = new URIish(url);
 		if (!"git+cassandra".equals(u.getScheme()))
 			throw new IllegalArgumentException();
@@ -152,8 +249,812 @@ public class CassandraDatabaseBuilder {
 		return this;
 	}
 
-	/** @return create and return the database connection. */
-	public CassandraDatabase build() {
+	/** @return maximum bytes of chunk data cached in memory; 0 disables. */
+	public long getChunkCacheSize() {
+		return chunkCacheSize;
+	}
+
+	/**
+	 * Set the size of the in-process chunk cache.
+	 *
+	 * @param size
+	 *            maximum number of bytes of chunk data to keep in memory. 0
+	 *            disables the cache.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setChunkCacheSize(long size) {
+		chunkCacheSize = size;
+		return this;
+	}
+
+	/** @return directory holding the disk chunk cache; null if disabled. */
+	public File getDiskChunkCacheDirectory() {
+		return diskChunkCacheDirectory;
+	}
+
+	/**
+	 * Set the directory of the local disk chunk cache.
+	 * <p>
+	 * The directory should be on fast local storage, and must not be shared
+	 * with another process. Chunks in it are reused after a restart.
+	 *
+	 * @param dir
+	 *            directory to store the cache segments in. Null disables the
+	 *            disk cache.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setDiskChunkCacheDirectory(File dir) {
+		diskChunkCacheDirectory = dir;
+		return this;
+	}
+
+	/** @return maximum bytes stored in the disk chunk cache. */
+	public long getDiskChunkCacheSize() {
+		return diskChunkCacheSize;
+	}
+
+	/**
+	 * Set the size of the local disk chunk cache.
+	 *
+	 * @param size
+	 *            maximum number of bytes of disk space to use. 0 disables the
+	 *            disk cache.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setDiskChunkCacheSize(long size) {
+		diskChunkCacheSize = size;
+		return this;
+	}
+
+	/** @return maximum number of ObjectIndex rows cached; 0 disables. */
+	public int getObjectIndexCacheSize() {
+		return objectIndexCacheSize;
+	}
+
+	/**
+	 * Set the size of the ObjectIndex lookup cache.
+	 *
+	 * @param size
+	 *            maximum number of ObjectIndex rows to keep in memory,
+	 *            including rows remembered as missing. 0 disables the cache.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setObjectIndexCacheSize(int size) {
+		objectIndexCacheSize = size;
+		return this;
+	}
+
+	/** @return milliseconds the locations of an object are remembered. */
+	public long getObjectIndexCacheTimeout() {
+		return objectIndexCacheTimeout;
+	}
+
+	/**
+	 * Set how long the locations of an object are remembered.
+	 * <p>
+	 * Modifications made through this database drop the cached row at once;
+	 * locations added by other processes are seen once the entry expires.
+	 *
+	 * @param millis
+	 *            milliseconds before a found row is queried again.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setObjectIndexCacheTimeout(long millis) {
+		objectIndexCacheTimeout = millis;
+		return this;
+	}
+
+	/** @return milliseconds a missing ObjectIndex row is remembered. */
+	public long getObjectIndexMissingTimeout() {
+		return objectIndexMissingTimeout;
+	}
+
+	/**
+	 * Set how long a missing ObjectIndex row is remembered.
+	 * <p>
+	 * Missing rows are only reported from the cache to fast lookups that
+	 * accept missing results; stronger reads always go to the cluster.
+	 *
+	 * @param millis
+	 *            milliseconds before a missing row is queried again.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setObjectIndexMissingTimeout(long millis) {
+		objectIndexMissingTimeout = millis;
+		return this;
+	}
+
+	/** @return objects a new repository's filter is sized for; 0 disables. */
+	public long getBloomFilterSize() {
+		return bloomFilterSize;
+	}
+
+	/**
+	 * Enable per-repository object existence filters.
+	 * <p>
+	 * Every process writing to the keyspace must use the same setting, and
+	 * existing repositories need their filter rebuilt once it is enabled.
+	 *
+	 * @param expectedObjects
+	 *            number of objects a new repository's filter is sized for, at
+	 *            about 1.2 bytes per object. 0 disables the filters.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setBloomFilterSize(long expectedObjects) {
+		bloomFilterSize = expectedObjects;
+		return this;
+	}
+
+	/** @return maximum number of keys in one multiget. */
+	public int getReadBatchKeys() {
+		return readBatchKeys;
+	}
+
+	/**
+	 * Set the maximum number of keys sent in one multiget.
+	 * <p>
+	 * Larger reads are split into sub-batches that run concurrently.
+	 *
+	 * @param keys
+	 *            maximum number of row keys per multiget.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setReadBatchKeys(int keys) {
+		readBatchKeys = keys;
+		return this;
+	}
+
+	/** @return expected bytes returned by one multiget. */
+	public long getReadBatchBytes() {
+		return readBatchBytes;
+	}
+
+	/**
+	 * Set the expected number of bytes returned by one multiget.
+	 * <p>
+	 * The expected size of the rows being read is used to limit the number of
+	 * keys in one sub-batch, keeping Thrift frames of chunk reads small.
+	 *
+	 * @param bytes
+	 *            maximum expected response size of one multiget.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setReadBatchBytes(long bytes) {
+		readBatchBytes = bytes;
+		return this;
+	}
+
+	/** @return sub-batches of one read allowed to run at once. */
+	public int getReadConcurrency() {
+		return readConcurrency;
+	}
+
+	/**
+	 * Set the number of sub-batches of one read allowed to run at once.
+	 *
+	 * @param concurrency
+	 *            maximum number of multigets in flight for one request.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setReadConcurrency(int concurrency) {
+		readConcurrency = concurrency;
+		return this;
+	}
+
+	/** @return microseconds ObjectIndex lookups wait to be batched. */
+	public long getObjectIndexBatchWindow() {
+		return objectIndexBatchWindow;
+	}
+
+	/**
+	 * Combine small ObjectIndex lookups from concurrent callers.
+	 * <p>
+	 * Lookups arriving within the window are sent as one multiget, which is
+	 * started early if {@link #getReadBatchKeys()} keys have been queued.
+	 *
+	 * @param micros
+	 *            how long the first lookup of a batch waits for others, in
+	 *            microseconds. 0 disables batching.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setObjectIndexBatchWindow(long micros) {
+		objectIndexBatchWindow = micros;
+		return this;
+	}
+
+	/** @return locations of one object read per column slice. */
+	public int getObjectIndexColumnLimit() {
+		return objectIndexColumnLimit;
+	}
+
+	/**
+	 * Set the number of locations of one object read in one column slice.
+	 * <p>
+	 * An object stored in many chunks has a wide ObjectIndex row. Rows wider
+	 * than the limit are read in further slices of this size, so no single
+	 * response grows with the popularity of an object.
+	 *
+	 * @param limit
+	 *            columns per slice. 0 reads each row in one slice.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setObjectIndexColumnLimit(int limit) {
+		objectIndexColumnLimit = limit;
+		return this;
+	}
+
+	/** @return locations of one object returned by a lookup; 0 for all. */
+	public int getObjectIndexMaxInfos() {
+		return objectIndexMaxInfos;
+	}
+
+	/**
+	 * Stop reading an object's locations after the first few.
+	 * <p>
+	 * Any one location is enough to read an object, so a lookup may stop
+	 * early rather than page through a very wide row. Locations are taken in
+	 * column order, which is the order of their chunk keys.
+	 *
+	 * @param max
+	 *            locations to return per object. 0 returns all of them.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setObjectIndexMaxInfos(int max) {
+		objectIndexMaxInfos = max;
+		return this;
+	}
+
+	/** @return maximum bytes of writes held by one write buffer. */
+	public int getWriteBufferSize() {
+		return writeBufferSize;
+	}
+
+	/**
+	 * Set the size of a write buffer.
+	 * <p>
+	 * Writes are held in memory until a batch is full, and batches being sent
+	 * count against this limit until Cassandra has accepted them.
+	 *
+	 * @param bytes
+	 *            maximum bytes of writes held by one buffer.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteBufferSize(int bytes) {
+		writeBufferSize = bytes;
+		return this;
+	}
+
+	/** @return maximum mutations in one write batch; 0 for no limit. */
+	public int getWriteBatchMutations() {
+		return writeBatchMutations;
+	}
+
+	/**
+	 * Set the maximum number of mutations in one write batch.
+	 *
+	 * @param mutations
+	 *            number of column insertions and deletions after which a
+	 *            batch is sent. 0 limits batches only by size.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteBatchMutations(int mutations) {
+		writeBatchMutations = mutations;
+		return this;
+	}
+
+	/** @return milliseconds a write batch may stay open; 0 for no limit. */
+	public long getWriteBatchLinger() {
+		return writeBatchLinger;
+	}
+
+	/**
+	 * Set the maximum time a write batch may stay open.
+	 * <p>
+	 * The age of a batch is checked as writes are added to it, so a batch
+	 * that receives no further writes is sent when the buffer is flushed.
+	 *
+	 * @param millis
+	 *            milliseconds after which an open batch is sent. 0 disables.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteBatchLinger(long millis) {
+		writeBatchLinger = millis;
+		return this;
+	}
+
+	/** @return true if the write batch size adapts to cluster latency. */
+	public boolean isWriteBatchAdaptive() {
+		return writeBatchAdaptive;
+	}
+
+	/**
+	 * Adapt the write batch size to the latency of the cluster.
+	 * <p>
+	 * Batches start at a quarter of {@link #getWriteBufferSize()}, grow while
+	 * they complete faster than {@link #getWriteBatchLatency()}, and are
+	 * halved when one times out or takes more than twice as long.
+	 *
+	 * @param adaptive
+	 *            true to adapt the batch size; false to always send batches
+	 *            of the full buffer size.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteBatchAdaptive(boolean adaptive) {
+		writeBatchAdaptive = adaptive;
+		return this;
+	}
+
+	/** @return target milliseconds for writing one adaptive batch. */
+	public long getWriteBatchLatency() {
+		return writeBatchLatency;
+	}
+
+	/**
+	 * Set the target latency of an adaptive write batch.
+	 *
+	 * @param millis
+	 *            milliseconds a batch should take to be written.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteBatchLatency(long millis) {
+		writeBatchLatency = millis;
+		return this;
+	}
+
+	/** @return bytes of write batches allowed in flight; 0 for no limit. */
+	public long getWriteInFlightBytes() {
+		return writeInFlightBytes;
+	}
+
+	/**
+	 * Limit the bytes of write batches being sent at once.
+	 * <p>
+	 * The limit is shared by all write buffers of the database. A buffer
+	 * starting a batch waits while the limit is reached, bounding the heap
+	 * used by concurrent pushes when Cassandra falls behind.
+	 *
+	 * @param bytes
+	 *            bytes of batches allowed in flight. 0 disables the limit.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteInFlightBytes(long bytes) {
+		writeInFlightBytes = bytes;
+		return this;
+	}
+
+	/** @return number of write batches allowed in flight; 0 for no limit. */
+	public int getWriteInFlightBatches() {
+		return writeInFlightBatches;
+	}
+
+	/**
+	 * Limit the number of write batches being sent at once.
+	 *
+	 * @param batches
+	 *            batches allowed in flight across all write buffers. 0
+	 *            disables the limit.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteInFlightBatches(int batches) {
+		writeInFlightBatches = batches;
+		return this;
+	}
+
+	/** @return true if write batches are grouped by token range. */
+	public boolean isWriteTokenAware() {
+		return writeTokenAware;
+	}
+
+	/**
+	 * Group buffered writes by the token range owning their rows.
+	 * <p>
+	 * Each write buffer keeps one batch per range of the ring, so a batch
+	 * only touches the rows of one replica set and its coordinator writes to
+	 * fewer nodes. Requires the {@code RandomPartitioner}; with any other
+	 * partitioner writes are not grouped.
+	 *
+	 * @param aware
+	 *            true to group writes by token range.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteTokenAware(boolean aware) {
+		writeTokenAware = aware;
+		return this;
+	}
+
+	/** @return times a failed single row write is sent again. */
+	public int getWriteRetryAttempts() {
+		return writeRetryAttempts;
+	}
+
+	/**
+	 * Set how often a write that failed transiently is sent again.
+	 * <p>
+	 * A failed batch of several rows is split in halves, which are sent
+	 * separately; once a single row remains, it is retried up to this many
+	 * times if the failure was a timeout or an unavailable cluster.
+	 *
+	 * @param attempts
+	 *            maximum retries of one row. 0 disables retries.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteRetryAttempts(int attempts) {
+		writeRetryAttempts = attempts;
+		return this;
+	}
+
+	/** @return base milliseconds to wait before a write is retried. */
+	public long getWriteRetryBackoff() {
+		return writeRetryBackoff;
+	}
+
+	/**
+	 * Set the base wait before a failed write is sent again.
+	 * <p>
+	 * The wait doubles with each retry of the same row, up to 10 seconds,
+	 * and a random part of it is used so writers do not retry in step.
+	 *
+	 * @param millis
+	 *            base wait in milliseconds.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteRetryBackoff(long millis) {
+		writeRetryBackoff = millis;
+		return this;
+	}
+
+	/** @return retries allowed for all batches of one write buffer. */
+	public int getWriteRetryBudget() {
+		return writeRetryBudget;
+	}
+
+	/**
+	 * Set the number of retries allowed for one write buffer.
+	 * <p>
+	 * Splitting a batch and retrying a row each use one retry. Once the
+	 * budget of a buffer is spent, the next failure fails the push.
+	 *
+	 * @param retries
+	 *            retries allowed per write buffer.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteRetryBudget(int retries) {
+		writeRetryBudget = retries;
+		return this;
+	}
+
+	/** @return largest Thrift frame accepted by the cluster. */
+	public long getThriftFrameSize() {
+		return thriftFrameSize;
+	}
+
+	/**
+	 * Set the largest Thrift frame accepted by the cluster.
+	 * <p>
+	 * This must not exceed {@code thrift_framed_transport_size_in_mb} of the
+	 * nodes. Write batches are split so no single {@code batch_mutate} call is
+	 * larger; a row larger than a frame is sent on its own.
+	 *
+	 * @param bytes
+	 *            size of the frame in bytes.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setThriftFrameSize(long bytes) {
+		thriftFrameSize = bytes;
+		return this;
+	}
+
+	/** @return bytes per column of newly written chunks; 0 for one column. */
+	public int getChunkPageSize() {
+		return chunkPageSize;
+	}
+
+	/**
+	 * Store the data of large chunks in several columns.
+	 * <p>
+	 * Chunks larger than the page size are written as a series of page
+	 * columns, which are read back a few at a time. Chunks written with either
+	 * layout can always be read, so the setting may be changed at any time.
+	 *
+	 * @param bytes
+	 *            size of one page. 0 stores all data in a single column.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setChunkPageSize(int bytes) {
+		chunkPageSize = bytes;
+		return this;
+	}
+
+	/** @return bytes of chunks read ahead at once; 0 if disabled. */
+	public long getReadAheadSize() {
+		return readAheadSize;
+	}
+
+	/**
+	 * Read ahead the chunks hinted by the meta of chunks being read.
+	 * <p>
+	 * Chunks are read ahead into the in-process chunk cache, so read-ahead
+	 * also requires {@link #setChunkCacheSize(long)}.
+	 *
+	 * @param bytes
+	 *            budget of chunks being read ahead at once, counted at 1 MiB
+	 *            per chunk. 0 disables read-ahead.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setReadAheadSize(long bytes) {
+		readAheadSize = bytes;
+		return this;
+	}
+
+	/** @return latency percentile after which a read is hedged; 0 if off. */
+	public int getHedgeReadPercentile() {
+		return hedgeReadPercentile;
+	}
+
+	/**
+	 * Send a second copy of chunk and ObjectIndex reads that are slow.
+	 * <p>
+	 * A read still running after the given percentile of the recent latency
+	 * of its column family is sent again, normally to another host, and the
+	 * first answer is used. The second copy adds load to the cluster, so the
+	 * percentile should be high, such as 95 or 99.
+	 *
+	 * @param percentile
+	 *            percentile of latency to hedge after, from 1 to 99. 0
+	 *            disables hedged reads.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setHedgeReadPercentile(int percentile) {
+		hedgeReadPercentile = percentile;
+		return this;
+	}
+
+	/** @return minimum milliseconds to wait before hedging a read. */
+	public long getHedgeReadMinDelay() {
+		return hedgeReadMinDelay;
+	}
+
+	/**
+	 * Set the minimum time to wait before hedging a read.
+	 *
+	 * @param millis
+	 *            milliseconds a read runs at least before a copy is sent.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setHedgeReadMinDelay(long millis) {
+		hedgeReadMinDelay = millis;
+		return this;
+	}
+
+	/** @return true if operations prefer the hosts answering fastest. */
+	public boolean isLatencyAwareHosts() {
+		return latencyAwareHosts;
+	}
+
+	/**
+	 * Send operations to the hosts that have recently answered fastest.
+	 * <p>
+	 * Only applies when {@link #build()} creates the connection pool, that is
+	 * when no {@link #setCluster(Cluster)} was given and no pool of the same
+	 * cluster name exists in this JVM.
+	 *
+	 * @param aware
+	 *            true to balance by latency; false for round robin.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setLatencyAwareHosts(boolean aware) {
+		latencyAwareHosts = aware;
+		return this;
+	}
+
+	/** @return true if timed out chunk reads are retried at ONE. */
+	public boolean isDowngradeChunkReads() {
+		return downgradeChunkReads;
+	}
+
+	/**
+	 * Retry chunk reads that time out at quorum with consistency ONE.
+	 * <p>
+	 * Chunks are never modified once written, so a single replica answers
+	 * correctly if it has the chunk. Other families, in particular references,
+	 * are never read at a weaker consistency than requested.
+	 *
+	 * @param downgrade
+	 *            true to retry timed out or unavailable chunk reads at ONE.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setDowngradeChunkReads(boolean downgrade) {
+		downgradeChunkReads = downgrade;
+		return this;
+	}
+
+	/** @return threads reading chunks and ObjectIndex rows; 0 shares. */
+	public int getReadThreads() {
+		return readThreads;
+	}
+
+	/**
+	 * Set the number of threads that read chunks and ObjectIndex rows.
+	 * <p>
+	 * Giving reads, writes and background work their own pools keeps a large
+	 * push from starving the reads of concurrent clones, and keeps bloom
+	 * filter loads and read-ahead from delaying either.
+	 *
+	 * @param threads
+	 *            size of the read pool. 0 runs reads on the shared
+	 *            {@link #setExecutorService(ExecutorService)}.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setReadThreads(int threads) {
+		readThreads = threads;
+		return this;
+	}
+
+	/** @return threads sending write batches; 0 shares. */
+	public int getWriteThreads() {
+		return writeThreads;
+	}
+
+	/**
+	 * Set the number of threads that send write batches.
+	 *
+	 * @param threads
+	 *            size of the write pool. 0 sends batches on the shared
+	 *            {@link #setExecutorService(ExecutorService)}.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setWriteThreads(int threads) {
+		writeThreads = threads;
+		return this;
+	}
+
+	/** @return threads loading bloom filters and reading ahead; 0 shares. */
+	public int getBackgroundThreads() {
+		return backgroundThreads;
+	}
+
+	/**
+	 * Set the number of threads that load bloom filters and read ahead.
+	 *
+	 * @param threads
+	 *            size of the background pool. 0 runs this work on the
+	 *            shared {@link #setExecutorService(ExecutorService)}.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setBackgroundThreads(int threads) {
+		backgroundThreads = threads;
+		return this;
+	}
+
+	/** @return tasks queued in each pool before callers run them. */
+	public int getPoolQueueSize() {
+		return poolQueueSize;
+	}
+
+	/**
+	 * Set the number of tasks each read, write or background pool queues.
+	 * <p>
+	 * When a pool's queue is full the submitting thread runs the task itself,
+	 * slowing the caller down rather than queueing without bound.
+	 *
+	 * @param size
+	 *            maximum tasks waiting for a thread in one pool.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder setPoolQueueSize(int size) {
+		poolQueueSize = size;
+		return this;
+	}
+
+	/**
+	 * Update properties by setting fields from the configuration.
+	 * <p>
+	 * Settings are read from the {@code cassandra} section. Settings not
+	 * present in the configuration are left unchanged.
+	 *
+	 * @param cfg
+	 *            the configuration to read properties from.
+	 * @return {@code this}
+	 */
+	public CassandraDatabaseBuilder fromConfig(Config cfg) {
+		setChunkCacheSize(cfg.getLong("cassandra", "chunkCacheSize",
+				getChunkCacheSize()));
+
+		String dir = cfg.getString("cassandra", null, "diskChunkCacheDirectory");
+		if (dir != null)
+			setDiskChunkCacheDirectory(new File(dir));
+		setDiskChunkCacheSize(cfg.getLong("cassandra", "diskChunkCacheSize",
+				getDiskChunkCacheSize()));
+
+		setObjectIndexCacheSize(cfg.getInt("cassandra", "objectIndexCacheSize",
+				getObjectIndexCacheSize()));
+		setObjectIndexCacheTimeout(cfg.getLong("cassandra",
+				"objectIndexCacheTimeout", getObjectIndexCacheTimeout()));
+		setObjectIndexMissingTimeout(cfg.getLong("cassandra",
+				"objectIndexMissingTimeout", getObjectIndexMissingTimeout()));
+		setBloomFilterSize(cfg.getLong("cassandra", "bloomFilterSize",
+				getBloomFilterSize()));
+
+		setReadBatchKeys(cfg.getInt("cassandra", "readBatchKeys",
+				getReadBatchKeys()));
+		setReadBatchBytes(cfg.getLong("cassandra", "readBatchBytes",
+				getReadBatchBytes()));
+		setReadConcurrency(cfg.getInt("cassandra", "readConcurrency",
+				getReadConcurrency()));
+		setObjectIndexBatchWindow(cfg.getLong("cassandra",
+				"objectIndexBatchWindow", getObjectIndexBatchWindow()));
+		setObjectIndexColumnLimit(cfg.getInt("cassandra",
+				"objectIndexColumnLimit", getObjectIndexColumnLimit()));
+		setObjectIndexMaxInfos(cfg.getInt("cassandra",
+				"objectIndexMaxInfos", getObjectIndexMaxInfos()));
+
+		setWriteBufferSize(cfg.getInt("cassandra", "writeBufferSize",
+				getWriteBufferSize()));
+		setWriteBatchMutations(cfg.getInt("cassandra", "writeBatchMutations",
+				getWriteBatchMutations()));
+		setWriteBatchLinger(cfg.getLong("cassandra", "writeBatchLinger",
+				getWriteBatchLinger()));
+		setWriteBatchAdaptive(cfg.getBoolean("cassandra", "writeBatchAdaptive",
+				isWriteBatchAdaptive()));
+		setWriteBatchLatency(cfg.getLong("cassandra", "writeBatchLatency",
+				getWriteBatchLatency()));
+		setWriteInFlightBytes(cfg.getLong("cassandra", "writeInFlightBytes",
+				getWriteInFlightBytes()));
+		setWriteInFlightBatches(cfg.getInt("cassandra",
+				"writeInFlightBatches", getWriteInFlightBatches()));
+		setWriteTokenAware(cfg.getBoolean("cassandra", "writeTokenAware",
+				isWriteTokenAware()));
+		setWriteRetryAttempts(cfg.getInt("cassandra", "writeRetryAttempts",
+				getWriteRetryAttempts()));
+		setWriteRetryBackoff(cfg.getLong("cassandra", "writeRetryBackoff",
+				getWriteRetryBackoff()));
+		setWriteRetryBudget(cfg.getInt("cassandra", "writeRetryBudget",
+				getWriteRetryBudget()));
+		setThriftFrameSize(cfg.getLong("cassandra", "thriftFrameSize",
+				getThriftFrameSize()));
+		setChunkPageSize(cfg.getInt("cassandra", "chunkPageSize",
+				getChunkPageSize()));
+		setReadAheadSize(cfg.getLong("cassandra", "readAheadSize",
+				getReadAheadSize()));
+		setHedgeReadPercentile(cfg.getInt("cassandra", "hedgeReadPercentile",
+				getHedgeReadPercentile()));
+		setHedgeReadMinDelay(cfg.getLong("cassandra", "hedgeReadMinDelay",
+				getHedgeReadMinDelay()));
+		setLatencyAwareHosts(cfg.getBoolean("cassandra", "latencyAwareHosts",
+				isLatencyAwareHosts()));
+		setDowngradeChunkReads(cfg.getBoolean("cassandra",
+				"downgradeChunkReads", isDowngradeChunkReads()));
+		setReadThreads(cfg.getInt("cassandra", "readThreads",
+				getReadThreads()));
+		setWriteThreads(cfg.getInt("cassandra", "writeThreads",
+				getWriteThreads()));
+		setBackgroundThreads(cfg.getInt("cassandra", "backgroundThreads",
+				getBackgroundThreads()));
+		setPoolQueueSize(cfg.getInt("cassandra", "poolQueueSize",
+				getPoolQueueSize()));
+		return this;
+	}
+
+	private void fromQuery(String query) {
+		Config cfg = new Config();
+		for (String param : query.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq <= 0)
+				throw new IllegalArgumentException("Invalid URI option: "
+						+ param);
+			String name = param.substring(0, eq);
+			String value = param.substring(eq + 1);
+			cfg.setString("cassandra", null, name, value);
+		}
+		fromConfig(cfg);
+	}
+
+	/**
+	 * @return create and return the database connection.
+	 * @throws DhtException
+	 *             the local disk chunk cache cannot be opened.
+	 */
+	public CassandraDatabase build() throws DhtException {
 		if (cluster == null) {
 			if (clusterName == null)
 				throw new IllegalArgumentException("No cluster name set");
@@ -165,6 +1066,10 @@ public class CassandraDatabaseBuilder {
 
 				CassandraHostConfigurator cfg = new CassandraHostConfigurator();
 				cfg.setHosts(hosts);
+				if (latencyAwareHosts) {
+					latencyPolicy = new CsLatencyBalancingPolicy();
+					cfg.setLoadBalancingPolicy(latencyPolicy);
+				}
 				cluster = HFactory.getOrCreateCluster(clusterName, cfg);
 			}
 		}
@@ -177,4 +1082,8 @@ public class CassandraDatabaseBuilder {
 
 		return new CassandraDatabase(this);
 	}
+
+	CsLatencyBalancingPolicy getLatencyPolicy() {
+		return latencyPolicy;
+	}
 }
@@ -70,9 +70,26 @@ public class CassandraRepositoryBuilder
 
 	private ExecutorService executorService;
 
+	private String uri;
+
+	/**
+	 * Configure the builder from a {@code git+cassandra://} URI.
+	 * <p>
+	 * Query parameters of the URI set options of the database, see
+	 * {@link CassandraDatabaseBuilder#setURI(String)}.
+	 *
+	 * @param url
+	 *            the URI of the repository.
+	 * @return {@code this}
+	 * @throws URISyntaxException
+	 *             the URI cannot be parsed.
+	 */
 	public CassandraRepositoryBuilder setURI(final String url)
 			throws URISyntaxException {
-		URIish u = new URIish(url);
+		uri = url;
+
+		int q = url.indexOf('?');
+		URIish u = new URIish(q < 0 ? url : url.substring(0, q));
 		if (!"git+cassandra".equals(u.getScheme()))
 			throw new IllegalArgumentException();
 
@@ -138,7 +155,15 @@ public class CassandraRepositoryBuilder
 	public CassandraRepositoryBuilder setup() throws IllegalArgumentException,
 			DhtException, RepositoryNotFoundException {
 		if (getDatabase() == null) {
-			setDatabase(new CassandraDatabaseBuilder()
+			CassandraDatabaseBuilder db = new CassandraDatabaseBuilder();
+			if (uri != null) {
+				try {
+					db.setURI(uri);
+				} catch (URISyntaxException err) {
+					throw new IllegalArgumentException(err.getMessage());
+				}
+			}
+			setDatabase(db
 			  .setHosts(getHosts())
 			  .setClusterName(getClusterName())
 			  .setKeyspaceName(getKeyspaceName())
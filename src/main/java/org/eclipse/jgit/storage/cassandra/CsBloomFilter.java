@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.util.NB;
+
+/**
+ * Bloom filter over the object names stored in one repository.
+ * <p>
+ * SHA-1 names are already uniformly distributed, so the probe positions are
+ * taken directly from the name with double hashing instead of rehashing it.
+ * Bits are set with compare-and-swap, so concurrent writers do not need to
+ * hold a lock.
+ */
+final class CsBloomFilter {
+	private static final int VERSION = 1;
+
+	/** Header: magic 'B' 'F' 0 version, hash count, word count, count. */
+	private static final int HDR = 4 + 4 + 4 + 8;
+
+	/**
+	 * Create an empty filter sized for a number of objects.
+	 *
+	 * @param expectedObjects
+	 *            number of objects the filter should hold at about a 1%
+	 *            false positive rate.
+	 * @return the new filter.
+	 */
+	static CsBloomFilter create(long expectedObjects) {
+		long n = Math.max(1024, expectedObjects);
+		long bits = (long) Math.ceil(n * 9.6); // -ln(0.01) / ln(2)^2
+		int words = (int) Math.min(Integer.MAX_VALUE / 64, (bits + 63) / 64);
+		return new CsBloomFilter(7, words);
+	}
+
+	static CsBloomFilter fromBytes(byte[] raw) {
+		if (raw.length < HDR || raw[0] != 'B' || raw[1] != 'F'
+				|| raw[3] != VERSION)
+			throw new IllegalArgumentException("Invalid bloom filter");
+
+		int k = NB.decodeInt32(raw, 4);
+		int words = NB.decodeInt32(raw, 8);
+		if (k <= 0 || words <= 0 || raw.length != HDR + words * 8)
+			throw new IllegalArgumentException("Invalid bloom filter");
+
+		CsBloomFilter f = new CsBloomFilter(k, words);
+		f.count.set(NB.decodeInt64(raw, 12));
+		for (int i = 0; i < words; i++)
+			f.bits.set(i, NB.decodeInt64(raw, HDR + i * 8));
+		return f;
+	}
+
+	private final int hashCount;
+
+	private final AtomicLongArray bits;
+
+	private final long bitCount;
+
+	private final AtomicLong count = new AtomicLong();
+
+	private CsBloomFilter(int hashCount, int words) {
+		this.hashCount = hashCount;
+		this.bits = new AtomicLongArray(words);
+		this.bitCount = 64L * words;
+	}
+
+	/**
+	 * Add an object to the filter.
+	 *
+	 * @param id
+	 *            the object name.
+	 */
+	void add(AnyObjectId id) {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		id.copyRawTo(raw, 0);
+		long h1 = NB.decodeUInt32(raw, 4);
+		long h2 = NB.decodeUInt32(raw, 8);
+
+		for (int i = 0; i < hashCount; i++) {
+			long bit = (h1 + i * h2) % bitCount;
+			int w = (int) (bit >>> 6);
+			long mask = 1L << (bit & 63);
+			long old;
+			do {
+				old = bits.get(w);
+			} while ((old & mask) == 0
+					&& !bits.compareAndSet(w, old, old | mask));
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Test if an object may be in the filter.
+	 *
+	 * @param id
+	 *            the object name.
+	 * @return false if the object was definitely never added.
+	 */
+	boolean mightContain(AnyObjectId id) {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		id.copyRawTo(raw, 0);
+		long h1 = NB.decodeUInt32(raw, 4);
+		long h2 = NB.decodeUInt32(raw, 8);
+
+		for (int i = 0; i < hashCount; i++) {
+			long bit = (h1 + i * h2) % bitCount;
+			if ((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param other
+	 *            another filter.
+	 * @return true if {@link #merge(CsBloomFilter)} can combine the filters.
+	 */
+	boolean sameShape(CsBloomFilter other) {
+		return hashCount == other.hashCount
+				&& bits.length() == other.bits.length();
+	}
+
+	/**
+	 * Set every bit that is set in another filter of the same shape.
+	 *
+	 * @param other
+	 *            the filter to combine into this one.
+	 */
+	void merge(CsBloomFilter other) {
+		for (int i = 0; i < bits.length(); i++) {
+			long add = other.bits.get(i);
+			long old;
+			do {
+				old = bits.get(i);
+			} while ((old | add) != old
+					&& !bits.compareAndSet(i, old, old | add));
+		}
+
+		for (;;) {
+			long old = count.get();
+			long n = Math.max(old, other.count.get());
+			if (count.compareAndSet(old, n))
+				break;
+		}
+	}
+
+	/** @return approximate number of objects added to the filter. */
+	long getObjectCount() {
+		return count.get();
+	}
+
+	/** @return false positive rate expected from the bits currently set. */
+	double getEstimatedFalsePositiveRate() {
+		long set = 0;
+		for (int i = 0; i < bits.length(); i++)
+			set += Long.bitCount(bits.get(i));
+		return Math.pow(((double) set) / bitCount, hashCount);
+	}
+
+	byte[] asBytes() {
+		int words = bits.length();
+		byte[] raw = new byte[HDR + words * 8];
+		raw[0] = 'B';
+		raw[1] = 'F';
+		raw[3] = VERSION;
+		NB.encodeInt32(raw, 4, hashCount);
+		NB.encodeInt32(raw, 8, words);
+		NB.encodeInt64(raw, 12, count.get());
+		for (int i = 0; i < words; i++)
+			NB.encodeInt64(raw, HDR + i * 8, bits.get(i));
+		return raw;
+	}
+}
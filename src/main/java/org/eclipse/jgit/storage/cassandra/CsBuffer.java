@@ -45,30 +45,61 @@ package org.eclipse.jgit.storage.cassandra;
 
 import static me.prettyprint.hector.api.factory.HFactory.createColumn;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
 import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
 import me.prettyprint.hector.api.exceptions.HectorException;
-import me.prettyprint.hector.api.mutation.MutationResult;
+import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.mutation.Mutator;
 
 import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
 import org.eclipse.jgit.storage.dht.spi.util.AbstractWriteBuffer;
 
-/** Buffers write operations to Cassandra to create larger batches. */
+/**
+ * Buffers write operations to Cassandra to create larger batches.
+ * <p>
+ * When a batch is sent is decided by the database's {@link CsWritePolicy}. If
+ * the database groups writes by token range, one batch is kept open for each
+ * range of the ring, so every batch touches the rows of a single replica set.
+ */
 final class CsBuffer extends AbstractWriteBuffer {
 	private static final BytesArraySerializer S = CassandraDatabase.S;
 
+	/** Size of a column besides its name and value: timestamp, framing. */
+	private static final int COLUMN_OVERHEAD = 24;
+
 	private final CassandraDatabase db;
 
-	private Mutator<byte[]> buf;
+	private final CsWritePolicy policy;
+
+	private final CsTokenRing ring;
+
+	private final CsWriteRetry retry;
+
+	private final Map<Integer, Batch> open;
 
-	CsBuffer(CassandraDatabase db, int bufferSize) {
-		super(db.getExecutorService(), bufferSize);
+	private int openBytes;
+
+	private Set<Integer> modifiedFilters;
+
+	CsBuffer(CassandraDatabase db, CsWritePolicy policy) {
+		super(db.getWriteExecutor(), policy.getBufferSize());
 		this.db = db;
+		this.policy = policy;
+		this.ring = db.getTokenRing();
+		this.retry = db.newWriteRetry();
+		this.open = new HashMap<Integer, Batch>();
 	}
 
 	void put(String colFam, byte[] key, byte[] col, byte[] val)
@@ -81,65 +112,324 @@ final class CsBuffer extends AbstractWriteBuffer {
 			throws DhtException {
 		int sz = colFam.length() + key.length;
 		for (HColumn<byte[], byte[]> col : cols)
-			sz += col.getName().length + col.getValue().length;
-
-		if (add(sz)) {
-			init();
-			for (HColumn<byte[], byte[]> col : cols)
-				buf.addInsertion(key, colFam, col);
-			queued(sz);
-		} else {
-			Mutator<byte[]> op = db.createMutator();
-			for (HColumn<byte[], byte[]> col : cols)
-				op.addInsertion(key, colFam, col);
-			start(op, sz);
-		}
+			sz += col.getName().length + col.getValue().length
+					+ COLUMN_OVERHEAD;
+
+		Row row = new Row(colFam, key, cols, null, 0, sz);
+		if (add(sz) && sz < policy.getBatchSize()) {
+			Batch b = batch(key, sz);
+			b.rows.add(row);
+			buffered(b, sz, cols.size());
+		} else
+			start(Collections.singletonList(row), sz, null);
 	}
 
 	void delete(String colFam, byte[] key, byte[] col) throws DhtException {
-		int sz = colFam.length() + key.length + col.length;
+		int sz = colFam.length() + key.length + col.length + COLUMN_OVERHEAD;
 		add(sz);
-		init();
-		buf.addDeletion(key, colFam, col, CassandraDatabase.S);
-		queued(sz);
+		Batch b = batch(key, sz);
+		b.rows.add(new Row(colFam, key, null, col, HFactory.createClock(), sz));
+		buffered(b, sz, 1);
 	}
 
 	void deleteRow(String colFam, byte[] key) throws DhtException {
-		int sz = colFam.length() + key.length;
+		int sz = colFam.length() + key.length + COLUMN_OVERHEAD;
 		add(sz);
-		init();
-		buf.addDeletion(key, colFam, null, CassandraDatabase.S);
-		queued(sz);
+		Batch b = batch(key, sz);
+		b.rows.add(new Row(colFam, key, null, null, HFactory.createClock(),
+				sz));
+		buffered(b, sz, 1);
+	}
+
+	/**
+	 * Note an ObjectIndex row is about to be modified by this buffer.
+	 * <p>
+	 * The row is dropped from the ObjectIndex cache immediately, and again
+	 * once the batch holding the modification has been written, so a lookup
+	 * racing with the write cannot leave a stale entry behind.
+	 *
+	 * @param key
+	 *            the row being modified.
+	 */
+	void modified(ObjectIndexKey key) {
+		CsObjectIndexCache cache = db.getObjectIndexCache();
+		if (cache != null) {
+			cache.remove(key);
+			Batch b = batch(key.asBytes());
+			if (b.modified == null)
+				b.modified = new ArrayList<ObjectIndexKey>();
+			b.modified.add(key);
+		}
 	}
 
-	private void init() {
-		if (buf == null)
-			buf = db.createMutator();
+	/**
+	 * Note a repository's object filter was updated in memory.
+	 * <p>
+	 * The filter is merged with the stored copy and written out in the
+	 * background when this buffer is flushed.
+	 *
+	 * @param repositoryId
+	 *            the repository whose filter was updated.
+	 */
+	void modifiedFilter(int repositoryId) {
+		if (modifiedFilters == null)
+			modifiedFilters = new HashSet<Integer>();
+		modifiedFilters.add(Integer.valueOf(repositoryId));
+	}
+
+	private Batch batch(byte[] rowKey) {
+		int idx = ring != null ? ring.rangeOf(rowKey) : 0;
+		Integer range = Integer.valueOf(idx);
+		Batch b = open.get(range);
+		if (b == null) {
+			b = new Batch(range);
+			open.put(range, b);
+		}
+		return b;
+	}
+
+	/**
+	 * Get the batch to add a row to, sending the current batch first if the
+	 * row would not fit in the same Thrift frame.
+	 */
+	private Batch batch(byte[] rowKey, int rowSize) throws DhtException {
+		Batch b = batch(rowKey);
+		if (b.rows.isEmpty() || policy.fitsFrame(b.bytes, rowSize))
+			return b;
+
+		List<ObjectIndexKey> modified = b.modified;
+		start(b);
+		b = batch(rowKey);
+		if (modified != null)
+			// The row being added may be one of these; drop it again later.
+			b.modified = new ArrayList<ObjectIndexKey>(modified);
+		return b;
+	}
+
+	private void buffered(Batch b, int size, int mutations)
+			throws DhtException {
+		// Report the bytes to the base class as well, so that add() running
+		// out of space starts the open batches instead of waiting for them.
+		queued(size);
+		b.bytes += size;
+		b.mutations += mutations;
+		openBytes += size;
+		if (policy.isFull(b.bytes, b.mutations, b.opened))
+			start(b);
+		else if (policy.getBufferSize() <= openBytes)
+			start(largest());
+	}
+
+	private Batch largest() {
+		Batch max = null;
+		for (Batch b : open.values())
+			if (max == null || max.bytes < b.bytes)
+				max = b;
+		return max;
+	}
+
+	private void start(Batch b) throws DhtException {
+		open.remove(b.range);
+		openBytes -= b.bytes;
+		if (0 < b.mutations)
+			start(b.rows, b.bytes, b.modified);
+		else if (b.modified != null) {
+			// Nothing was written for these keys; drop them now.
+			CsObjectIndexCache cache = db.getObjectIndexCache();
+			for (ObjectIndexKey key : b.modified)
+				cache.remove(key);
+		}
+	}
+
+	private void startBuffered() throws DhtException {
+		for (Batch b : new ArrayList<Batch>(open.values()))
+			start(b);
 	}
 
 	@Override
 	protected void startQueuedOperations(int bufferedByteCount)
 			throws DhtException {
-		Mutator<byte[]> op = buf;
-		buf = null;
-		start(op, bufferedByteCount);
+		startBuffered();
+	}
+
+	/**
+	 * Send everything buffered so far and wait for it to be written.
+	 * <p>
+	 * Writes buffered after the barrier are not sent until the writes before
+	 * it have completed.
+	 *
+	 * @throws DhtException
+	 *             a write before the barrier failed.
+	 */
+	void barrier() throws DhtException {
+		startBuffered();
+		super.flush();
+	}
+
+	@Override
+	public void flush() throws DhtException {
+		if (modifiedFilters != null) {
+			Set<Integer> filters = modifiedFilters;
+			modifiedFilters = null;
+			for (Integer id : filters)
+				db.getObjectBloom().persist(id.intValue());
+		}
+		startBuffered();
+		super.flush();
 	}
 
 	@Override
 	public void abort() throws DhtException {
-		buf = null;
+		open.clear();
+		openBytes = 0;
+		modifiedFilters = null;
 		super.abort();
 	}
 
-	private void start(final Mutator<byte[]> op, int size) throws DhtException {
-		start(new Callable<MutationResult>() {
-			public MutationResult call() throws Exception {
-				try {
-					return op.execute();
-				} catch (HectorException err) {
-					throw new DhtException(err);
+	private void start(final List<Row> rows, final int size,
+			final List<ObjectIndexKey> modified) throws DhtException {
+		final CsWriteWindow window = db.getWriteWindow();
+		final AtomicBoolean inWindow = new AtomicBoolean(true);
+		window.acquire(size);
+		try {
+			start(new Callable<Void>() {
+				public Void call() throws Exception {
+					try {
+						write(rows, size, 0);
+						if (modified != null) {
+							CsObjectIndexCache cache = db.getObjectIndexCache();
+							for (ObjectIndexKey key : modified)
+								cache.remove(key);
+						}
+						return null;
+					} finally {
+						if (inWindow.compareAndSet(true, false))
+							window.release(size);
+					}
+				}
+			}, size);
+		} catch (DhtException err) {
+			if (inWindow.compareAndSet(true, false))
+				window.release(size);
+			throw err;
+		} catch (RuntimeException err) {
+			if (inWindow.compareAndSet(true, false))
+				window.release(size);
+			throw err;
+		}
+	}
+
+	/**
+	 * Send rows to the cluster, retrying failures.
+	 * <p>
+	 * Insertions and deletions carry the timestamp they were created with, so
+	 * sending a batch again after a partial failure writes the same cells,
+	 * and a deletion never overtakes a later insertion of the same column. A
+	 * batch of several rows that fails is split in halves, isolating rows too
+	 * large or otherwise unacceptable to the cluster; a single row is retried
+	 * as is.
+	 */
+	private void write(List<Row> rows, int size, int attempt)
+			throws DhtException {
+		for (;;) {
+			Mutator<byte[]> op = db.createMutator();
+			for (Row r : rows)
+				r.addTo(op);
+
+			long startTime = System.nanoTime();
+			try {
+				db.execute(op);
+				policy.executed(size, System.nanoTime() - startTime, false);
+				return;
+			} catch (HectorException err) {
+				if (err instanceof HTimedOutException)
+					policy.executed(size, System.nanoTime() - startTime, true);
+
+				if (1 < rows.size() && CsWriteRetry.isSplittable(err)
+						&& retry.tryRetry(0)) {
+					policy.retried();
+					retry.sleep(attempt);
+					int half = rows.size() / 2;
+					List<Row> a = rows.subList(0, half);
+					List<Row> b = rows.subList(half, rows.size());
+					write(a, sizeOf(a), 0);
+					write(b, sizeOf(b), 0);
+					return;
 				}
+
+				if (!CsWriteRetry.isTransient(err) || !retry.tryRetry(attempt))
+					throw new DhtException(err);
+				policy.retried();
+				retry.sleep(attempt++);
 			}
-		}, size);
+		}
+	}
+
+	private static int sizeOf(List<Row> rows) {
+		int sz = 0;
+		for (Row r : rows)
+			sz += r.size;
+		return sz;
+	}
+
+	private static class Row {
+		final String colFam;
+
+		final byte[] key;
+
+		final List<HColumn<byte[], byte[]>> insert;
+
+		final byte[] delete;
+
+		final long clock;
+
+		final int size;
+
+		/**
+		 * @param insert
+		 *            columns to insert; null if this row is a deletion.
+		 * @param delete
+		 *            column to delete; null with {@code insert} also null
+		 *            deletes the whole row.
+		 * @param clock
+		 *            timestamp of the deletion, taken when it was requested.
+		 */
+		Row(String colFam, byte[] key, List<HColumn<byte[], byte[]>> insert,
+				byte[] delete, long clock, int size) {
+			this.colFam = colFam;
+			this.key = key;
+			this.insert = insert;
+			this.delete = delete;
+			this.clock = clock;
+			this.size = size;
+		}
+
+		void addTo(Mutator<byte[]> op) {
+			if (insert != null) {
+				for (HColumn<byte[], byte[]> col : insert)
+					op.addInsertion(key, colFam, col);
+			} else
+				op.addDeletion(key, colFam, delete, S, clock);
+		}
+	}
+
+	private static class Batch {
+		final Integer range;
+
+		final List<Row> rows;
+
+		final long opened;
+
+		int bytes;
+
+		int mutations;
+
+		List<ObjectIndexKey> modified;
+
+		Batch(Integer range) {
+			this.range = range;
+			this.rows = new ArrayList<Row>();
+			this.opened = System.currentTimeMillis();
+		}
 	}
 }
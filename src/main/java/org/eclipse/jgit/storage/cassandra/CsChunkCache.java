@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.PackChunk;
+
+/**
+ * Size bounded LRU cache of chunks recently read from the Chunk family.
+ * <p>
+ * Chunks are written once and never modified in place, so a chunk read from
+ * the cluster can be handed out again until it is removed. The cache is split
+ * into segments by key hash to reduce lock contention between readers; each
+ * segment evicts its least recently used entries once its share of the byte
+ * limit has been exceeded. A chunk is weighed by the arrays it keeps
+ * reachable, not by the length of its slices.
+ * <p>
+ * A read takes the key's {@link #generation(ChunkKey)} before querying the
+ * cluster and passes it to {@link #put(PackChunk.Members, long)}. If the
+ * chunk was removed in between, the result may predate the removal and is
+ * not cached.
+ */
+final class CsChunkCache {
+	private static final int MAX_SEGMENTS = 16;
+
+	private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	/** Number of invalidation counters; keys sharing one share a count. */
+	private static final int GENERATIONS = 4096;
+
+	private final long limit;
+
+	private final AtomicLongArray generations;
+
+	private final Segment[] segments;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	CsChunkCache(long limit) {
+		int cnt = MAX_SEGMENTS;
+		while (1 < cnt && limit / cnt < MIN_SEGMENT_SIZE)
+			cnt >>>= 1;
+
+		this.limit = limit;
+		this.generations = new AtomicLongArray(GENERATIONS);
+		this.segments = new Segment[cnt];
+		for (int i = 0; i < cnt; i++)
+			segments[i] = new Segment(limit / cnt);
+	}
+
+	/**
+	 * Lookup a chunk in the cache.
+	 *
+	 * @param key
+	 *            the chunk to find.
+	 * @return the cached chunk; null if it is not in the cache.
+	 */
+	PackChunk.Members get(ChunkKey key) {
+		PackChunk.Members m = segment(key).get(key);
+		if (m != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return m;
+	}
+
+	/**
+	 * Test if a chunk is cached.
+	 * <p>
+	 * Unlike {@link #get(ChunkKey)} this neither counts a hit or miss nor
+	 * makes the chunk the most recently used.
+	 *
+	 * @param key
+	 *            the chunk to find.
+	 * @return true if the chunk is in the cache.
+	 */
+	boolean contains(ChunkKey key) {
+		return segment(key).contains(key);
+	}
+
+	/**
+	 * Get the invalidation generation of a key.
+	 *
+	 * @param key
+	 *            the chunk about to be read.
+	 * @return value to pass to {@link #put(PackChunk.Members, long)}.
+	 */
+	long generation(ChunkKey key) {
+		return generations.get(stripe(key));
+	}
+
+	/**
+	 * Add a chunk read from the cluster to the cache.
+	 * <p>
+	 * Chunks larger than a segment are not cached, they would only evict
+	 * everything else.
+	 *
+	 * @param chunk
+	 *            the chunk to cache.
+	 * @param generation
+	 *            {@link #generation(ChunkKey)} taken before the read. If the
+	 *            chunk was removed since, nothing is cached.
+	 */
+	void put(PackChunk.Members chunk, long generation) {
+		int weight = weigh(chunk);
+		if (0 < weight)
+			segment(chunk.getChunkKey()).put(chunk, weight, generation);
+	}
+
+	/**
+	 * Discard a chunk from the cache.
+	 * <p>
+	 * Reads of the chunk already in flight will not cache their result.
+	 *
+	 * @param key
+	 *            the chunk to discard.
+	 */
+	void remove(ChunkKey key) {
+		segment(key).remove(key);
+	}
+
+	CacheStats getStatistics() {
+		long cnt = 0;
+		long weight = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				cnt += s.map.size();
+				weight += s.weight;
+			}
+		}
+		return new CacheStats(hits.get(), misses.get(), evictions.get(), cnt,
+				weight, limit);
+	}
+
+	private Segment segment(ChunkKey key) {
+		return segments[hash(key) & (segments.length - 1)];
+	}
+
+	private static int stripe(ChunkKey key) {
+		return (hash(key) >>> 4) & (GENERATIONS - 1);
+	}
+
+	private static int hash(ChunkKey key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h;
+	}
+
+	static int weigh(PackChunk.Members chunk) {
+		// A slice keeps its whole backing array reachable. Data and index
+		// read from the disk cache share one array, which is counted once.
+		ByteBuffer data = null;
+		ByteBuffer idx = null;
+		if (chunk.hasChunkData())
+			data = chunk.getChunkDataAsByteBuffer();
+		if (chunk.hasChunkIndex())
+			idx = chunk.getChunkIndexAsByteBuffer();
+
+		long sz = 0;
+		if (data != null)
+			sz += data.capacity();
+		if (idx != null && !sameArray(data, idx))
+			sz += idx.capacity();
+		if (chunk.getMeta() != null)
+			sz += 64;
+		return (int) Math.min(Integer.MAX_VALUE, sz);
+	}
+
+	private static boolean sameArray(ByteBuffer a, ByteBuffer b) {
+		return a != null && a.hasArray() && b.hasArray()
+				&& a.array() == b.array();
+	}
+
+	private static class Entry {
+		final PackChunk.Members chunk;
+
+		final int weight;
+
+		Entry(PackChunk.Members chunk, int weight) {
+			this.chunk = chunk;
+			this.weight = weight;
+		}
+	}
+
+	private class Segment {
+		final long limit;
+
+		final LinkedHashMap<ChunkKey, Entry> map;
+
+		long weight;
+
+		Segment(long limit) {
+			this.limit = limit;
+			this.map = new LinkedHashMap<ChunkKey, Entry>(64, 0.75f, true);
+		}
+
+		synchronized PackChunk.Members get(ChunkKey key) {
+			Entry e = map.get(key);
+			return e != null ? e.chunk : null;
+		}
+
+		synchronized boolean contains(ChunkKey key) {
+			return map.containsKey(key);
+		}
+
+		synchronized void put(PackChunk.Members chunk, int sz, long gen) {
+			// remove() bumps the generation while holding this lock, so the
+			// check and the insertion cannot straddle an invalidation.
+			ChunkKey key = chunk.getChunkKey();
+			if (limit < sz || generations.get(stripe(key)) != gen)
+				return;
+
+			Entry old = map.put(key, new Entry(chunk, sz));
+			if (old != null)
+				weight -= old.weight;
+			weight += sz;
+
+			Iterator<Map.Entry<ChunkKey, Entry>> i = map.entrySet().iterator();
+			while (limit < weight && i.hasNext()) {
+				Entry e = i.next().getValue();
+				i.remove();
+				weight -= e.weight;
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized void remove(ChunkKey key) {
+			generations.incrementAndGet(stripe(key));
+			Entry old = map.remove(key);
+			if (old != null)
+				weight -= old.weight;
+		}
+	}
+}
@@ -45,18 +45,34 @@ package org.eclipse.jgit.storage.cassandra;
 
 import static me.prettyprint.hector.api.factory.HFactory.createColumn;
 import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.beans.Row;
 import me.prettyprint.hector.api.beans.Rows;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HUnavailableException;
+import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.query.MultigetSliceQuery;
+import me.prettyprint.hector.api.query.SliceQuery;
 
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.cassandra.CsSingleFlight.Flight;
 import org.eclipse.jgit.storage.dht.AsyncCallback;
 import org.eclipse.jgit.storage.dht.ChunkKey;
 import org.eclipse.jgit.storage.dht.ChunkMeta;
@@ -66,12 +82,38 @@ import org.eclipse.jgit.storage.dht.spi.ChunkTable;
 import org.eclipse.jgit.storage.dht.spi.Context;
 import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
 import org.eclipse.jgit.storage.dht.spi.util.ColumnMatcher;
+import org.eclipse.jgit.util.NB;
 
+/**
+ * Stores pack chunks in the Chunk column family.
+ * <p>
+ * The chunk data is stored in the {@code chunk} column, unless a page size is
+ * configured and the data is larger: then it is split into columns
+ * {@code chunk:00000000}, {@code chunk:00000001}, ..., and the
+ * {@code chunkPages} column records the number of pages and the total length.
+ * Pages are read a few at a time and assembled, so neither the client nor a
+ * node needs to hold a large chunk in one Thrift message. The pages are
+ * written before the {@code chunkPages} column, so a reader that sees the
+ * page count finds every page. Both layouts are always read.
+ * <p>
+ * Column values are read as {@link ByteBuffer}s. Chunk data and index that
+ * make up most of the Thrift frame they arrived in are handed to JGit as a
+ * slice of that frame rather than copied; smaller values are copied so a
+ * cached chunk does not pin a large frame.
+ */
 final class CsChunkTable implements ChunkTable {
 	private static final BytesArraySerializer S = CassandraDatabase.S;
 
+	private static final ByteBufferSerializer BB = ByteBufferSerializer.get();
+
 	private static final String CF = "Chunk";
 
+	/** Size assumed for a chunk when splitting reads into sub-batches. */
+	private static final int EXPECTED_CHUNK_SIZE = 1024 * 1024;
+
+	/** Number of page column names encoded once and reused. */
+	private static final int PAGE_NAMES = 256;
+
 	private final CassandraDatabase db;
 
 	private final ColumnMatcher colChunk;
@@ -80,74 +122,408 @@ final class CsChunkTable implements ChunkTable {
 
 	private final ColumnMatcher colMeta;
 
+	private final ColumnMatcher colPages;
+
+	private final ColumnMatcher colPage;
+
+	private final byte[][] pageNames;
+
+	private final int pageSize;
+
+	private final int pagesPerRead;
+
 	private final byte[][] getCols;
 
+	private final int batchSize;
+
+	private final CsSingleFlight<ChunkKey, PackChunk.Members> inflight;
+
+	private final CsReadAhead readAhead;
+
 	CsChunkTable(CassandraDatabase db) {
 		this.db = db;
+		this.batchSize = db.getReadBatchSize(EXPECTED_CHUNK_SIZE);
+		this.inflight = new CsSingleFlight<ChunkKey, PackChunk.Members>();
+		if (0 < db.getReadAheadSize() && db.getChunkCache() != null)
+			this.readAhead = new CsReadAhead(this, db.getChunkCache(),
+					db.getBackgroundExecutor(), db.getReadAheadSize(),
+					EXPECTED_CHUNK_SIZE);
+		else
+			this.readAhead = null;
 		this.colChunk = new ColumnMatcher("chunk");
 		this.colIndex = new ColumnMatcher("index");
 		this.colMeta = new ColumnMatcher("meta");
+		this.colPages = new ColumnMatcher("chunkPages");
+		this.colPage = new ColumnMatcher("chunk:");
+		this.pageNames = new byte[PAGE_NAMES][];
+		for (int page = 0; page < PAGE_NAMES; page++)
+			pageNames[page] = encodePageName(page);
 		this.getCols = new byte[][] { colChunk.name(),
 				colIndex.name(),
 				colMeta.name(),
+				colPages.name(),
 		};
+		this.pageSize = db.getChunkPageSize();
+		this.pagesPerRead = 0 < pageSize ? db.getReadBatchSize(pageSize) : 1;
 	}
 
 	public void get(Context options, Set<ChunkKey> keys,
-			final AsyncCallback<Collection<PackChunk.Members>> callback) {
-		final MultigetSliceQuery<byte[], byte[], byte[]> q;
+			AsyncCallback<Collection<PackChunk.Members>> callback) {
+		get(options, keys, db.getReadExecutor(), true, callback);
+	}
 
-		q = createMultigetSliceQuery(db.getKeyspace(options), S, S, S);
-		q.setColumnFamily(CF);
-		q.setKeys(CsUtil.asByteArrays(keys));
-		q.setColumnNames(getCols);
+	/**
+	 * Read chunks on a specific pool.
+	 *
+	 * @param options
+	 *            consistency of the read.
+	 * @param keys
+	 *            the chunks to read.
+	 * @param executor
+	 *            pool to run the multigets on.
+	 * @param followHints
+	 *            true to read ahead the chunks hinted by the chunks loaded;
+	 *            false for reads made by read-ahead itself.
+	 * @param callback
+	 *            receives the chunks that exist.
+	 */
+	void get(final Context options, Set<ChunkKey> keys,
+			ExecutorService executor, final boolean followHints,
+			AsyncCallback<Collection<PackChunk.Members>> callback) {
+		final CsChunkCache cache = db.getChunkCache();
+		final CsDiskChunkCache diskCache = db.getDiskChunkCache();
+		final Keyspace keyspace = db.getKeyspace(options);
+		Collection<PackChunk.Members> found;
+		Set<ChunkKey> need = keys;
+
+		found = new ArrayList<PackChunk.Members>(keys.size());
+		if (cache != null) {
+			need = new HashSet<ChunkKey>();
+			for (ChunkKey key : keys) {
+				PackChunk.Members m = cache.get(key);
+				if (m != null)
+					found.add(m);
+				else
+					need.add(key);
+			}
+		}
+
+		new CsMultiget<ChunkKey, Collection<PackChunk.Members>>(executor,
+				callback) {
+			@Override
+			protected Collection<PackChunk.Members> newResult() {
+				return new ArrayList<PackChunk.Members>();
+			}
 
-		db.submit(new Runnable() {
-			public void run() {
-				try {
-					callback.onSuccess(parseChunks(q.execute().get()));
-				} catch (Throwable err) {
-					callback.onFailure(new DhtException(err));
+			@Override
+			protected Collection<PackChunk.Members> read(List<ChunkKey> batch)
+					throws Exception {
+				List<Flight<ChunkKey, PackChunk.Members>> lead;
+				List<Flight<ChunkKey, PackChunk.Members>> follow;
+				List<ChunkKey> leadKeys;
+				Collection<PackChunk.Members> r;
+
+				// The disk cache is read here, on the read pool, rather than
+				// on the thread that called get().
+				r = new ArrayList<PackChunk.Members>(batch.size());
+				if (diskCache != null) {
+					List<ChunkKey> miss = new ArrayList<ChunkKey>(batch.size());
+					for (ChunkKey key : batch) {
+						long gen = cache != null ? cache.generation(key) : 0;
+						PackChunk.Members m = diskCache.get(key);
+						if (m == null)
+							miss.add(key);
+						else {
+							if (cache != null)
+								cache.put(m, gen);
+							r.add(m);
+						}
+					}
+					batch = miss;
+				}
+
+				lead = new ArrayList<Flight<ChunkKey, PackChunk.Members>>();
+				follow = new ArrayList<Flight<ChunkKey, PackChunk.Members>>();
+				leadKeys = new ArrayList<ChunkKey>(batch.size());
+				for (ChunkKey key : batch) {
+					Flight<ChunkKey, PackChunk.Members> f;
+					f = inflight.begin(options, key);
+					if (f.isLeader()) {
+						lead.add(f);
+						leadKeys.add(key);
+					} else
+						follow.add(f);
+				}
+
+				if (!leadKeys.isEmpty()) {
+					Map<ChunkKey, PackChunk.Members> byKey;
+					long[] memGen = null;
+					long[] diskGen = null;
+					if (cache != null) {
+						memGen = new long[leadKeys.size()];
+						for (int i = 0; i < memGen.length; i++)
+							memGen[i] = cache.generation(leadKeys.get(i));
+					}
+					if (diskCache != null) {
+						diskGen = new long[leadKeys.size()];
+						for (int i = 0; i < diskGen.length; i++)
+							diskGen[i] = diskCache.generation(leadKeys.get(i));
+					}
+
+					try {
+						byKey = readRows(keyspace, leadKeys);
+						for (int i = 0; i < leadKeys.size(); i++)
+							lead.get(i).complete(byKey.get(leadKeys.get(i)));
+					} catch (Exception err) {
+						DhtException e = new DhtException(err);
+						for (Flight<ChunkKey, PackChunk.Members> f : lead)
+							f.fail(e);
+						throw e;
+					} finally {
+						for (Flight<ChunkKey, PackChunk.Members> f : lead)
+							f.abandon();
+					}
+
+					for (int i = 0; i < leadKeys.size(); i++) {
+						PackChunk.Members m = byKey.get(leadKeys.get(i));
+						if (m == null)
+							continue;
+						if (cache != null)
+							cache.put(m, memGen[i]);
+						if (diskCache != null)
+							diskCache.put(m, diskGen[i]);
+						r.add(m);
+					}
+					if (readAhead != null && followHints && !r.isEmpty())
+						readAhead.loaded(options, r);
 				}
+
+				for (Flight<ChunkKey, PackChunk.Members> f : follow) {
+					PackChunk.Members m = f.get();
+					if (m != null)
+						r.add(m);
+				}
+				return r;
+			}
+
+			@Override
+			protected void merge(Collection<PackChunk.Members> into,
+					Collection<PackChunk.Members> part) {
+				into.addAll(part);
+			}
+		}.start(need, found.isEmpty() ? null : found, batchSize,
+				db.getReadConcurrency());
+	}
+
+	private Map<ChunkKey, PackChunk.Members> readRows(final Keyspace keyspace,
+			final List<ChunkKey> keys) throws Exception {
+		CsHedge hedge = db.getHedge();
+		if (hedge == null)
+			return query(keyspace, keys);
+		return hedge.read(CF, new Callable<Map<ChunkKey, PackChunk.Members>>() {
+			public Map<ChunkKey, PackChunk.Members> call() throws Exception {
+				return query(keyspace, keys);
 			}
 		});
 	}
 
-	private Collection<PackChunk.Members> parseChunks(
-			Rows<byte[], byte[], byte[]> rows) throws DhtException {
+	private Map<ChunkKey, PackChunk.Members> query(Keyspace keyspace,
+			List<ChunkKey> keys) throws DhtException {
+		try {
+			return queryAt(keyspace, keys);
+		} catch (HTimedOutException err) {
+			return downgrade(keyspace, keys, err);
+		} catch (HUnavailableException err) {
+			return downgrade(keyspace, keys, err);
+		}
+	}
+
+	/**
+	 * Retry a read that failed at quorum with consistency ONE.
+	 * <p>
+	 * Chunks are never modified once written, so any replica holding a chunk
+	 * holds the right data. A replica may not have received a chunk yet, so
+	 * if the weaker read does not find every chunk the original failure is
+	 * reported instead.
+	 */
+	private Map<ChunkKey, PackChunk.Members> downgrade(Keyspace keyspace,
+			List<ChunkKey> keys, HectorException err)
+			throws DhtException {
+		Keyspace weak = db.getDowngradeKeyspace(keyspace);
+		if (weak == null)
+			throw err;
+
+		Map<ChunkKey, PackChunk.Members> r = queryAt(weak, keys);
+		if (r.size() < keys.size())
+			throw err;
+		db.downgraded();
+		return r;
+	}
+
+	private Map<ChunkKey, PackChunk.Members> queryAt(Keyspace keyspace,
+			List<ChunkKey> keys) throws DhtException {
+		MultigetSliceQuery<byte[], byte[], ByteBuffer> q;
+
+		q = createMultigetSliceQuery(keyspace, S, S, BB);
+		q.setColumnFamily(CF);
+		q.setKeys(CsUtil.asByteArrays(keys));
+		q.setColumnNames(getCols);
+
+		Map<ChunkKey, PackChunk.Members> r;
+		r = new HashMap<ChunkKey, PackChunk.Members>();
+		Rows<byte[], byte[], ByteBuffer> rows = db.execute(q).get();
+		for (PackChunk.Members m : parseChunks(keyspace, rows))
+			r.put(m.getChunkKey(), m);
+		return r;
+	}
+
+	private Collection<PackChunk.Members> parseChunks(Keyspace keyspace,
+			Rows<byte[], byte[], ByteBuffer> rows) throws DhtException {
 		Collection<PackChunk.Members> chunkList;
 		chunkList = new ArrayList<PackChunk.Members>(rows.getCount());
 
-		for (Row<byte[], byte[], byte[]> r : rows) {
+		for (Row<byte[], byte[], ByteBuffer> r : rows) {
 			PackChunk.Members m = new PackChunk.Members();
 			ChunkKey key = ChunkKey.fromBytes(r.getKey());
 			m.setChunkKey(key);
 
-			List<HColumn<byte[], byte[]>> t = r.getColumnSlice().getColumns();
-			for (HColumn<byte[], byte[]> cell : t) {
+			boolean hasData = false;
+			byte[] pages = null;
+			List<HColumn<byte[], ByteBuffer>> t;
+			t = r.getColumnSlice().getColumns();
+			for (HColumn<byte[], ByteBuffer> cell : t) {
 				byte[] col = cell.getName();
+				ByteBuffer v = cell.getValue();
 
-				if (colChunk.sameName(col))
-					m.setChunkData(cell.getValue());
+				if (colChunk.sameName(col)) {
+					if (isShared(v))
+						m.setChunkData(v.array(), start(v), v.remaining());
+					else
+						m.setChunkData(toArray(v));
+					hasData = true;
 
-				else if (colIndex.sameName(col))
-					m.setChunkIndex(cell.getValue());
+				} else if (colIndex.sameName(col)) {
+					if (isShared(v))
+						m.setChunkIndex(v.array(), start(v), v.remaining());
+					else
+						m.setChunkIndex(toArray(v));
 
-				else if (colMeta.sameName(col))
-					m.setMeta(ChunkMeta.fromBytes(key, cell.getValue()));
+				} else if (colMeta.sameName(col))
+					m.setMeta(ChunkMeta.fromBytes(key, toArray(v)));
+
+				else if (colPages.sameName(col))
+					pages = toArray(v);
 			}
+			if (pages != null && !hasData)
+				m.setChunkData(readPages(keyspace, key, pages));
 			chunkList.add(m);
 		}
 		return chunkList;
 	}
 
+	private byte[] readPages(Keyspace keyspace, ChunkKey key, byte[] pages)
+			throws DhtException {
+		int count = NB.decodeInt32(pages, 0);
+		byte[] data = new byte[NB.decodeInt32(pages, 4)];
+		byte[] rowKey = key.asBytes();
+		byte[] last = pageName(count - 1);
+		int ptr = 0;
+
+		for (int page = 0; page < count;) {
+			SliceQuery<byte[], byte[], ByteBuffer> q;
+			q = createSliceQuery(keyspace, S, S, BB);
+			q.setColumnFamily(CF);
+			q.setKey(rowKey);
+			q.setRange(pageName(page), last, false,
+					Math.min(pagesPerRead, count - page));
+
+			List<HColumn<byte[], ByteBuffer>> cols;
+			cols = db.execute(q).get().getColumns();
+			if (cols.isEmpty())
+				throw new DhtException("Chunk " + key + " is missing page "
+						+ page);
+
+			for (HColumn<byte[], ByteBuffer> cell : cols) {
+				ByteBuffer v = cell.getValue().duplicate();
+				int n = v.remaining();
+				if (!Arrays.equals(cell.getName(), pageName(page))
+						|| data.length - ptr < n)
+					throw new DhtException("Chunk " + key + " has a corrupt"
+							+ " page " + page);
+				v.get(data, ptr, n);
+				ptr += n;
+				page++;
+			}
+		}
+		if (ptr != data.length)
+			throw new DhtException("Chunk " + key + " is truncated");
+		return data;
+	}
+
+	/**
+	 * Test if a value can be used in place.
+	 * <p>
+	 * Hector passes values on as slices of the Thrift frame they were read
+	 * from. A value making up at least half of its frame is used without a
+	 * copy; anything smaller is copied, so the bytes kept alive by a cached
+	 * chunk are at most twice its size.
+	 */
+	private static boolean isShared(ByteBuffer v) {
+		return v.hasArray() && v.array().length <= 2 * v.remaining();
+	}
+
+	private static int start(ByteBuffer v) {
+		return v.arrayOffset() + v.position();
+	}
+
+	private static byte[] toArray(ByteBuffer v) {
+		if (v.hasArray() && start(v) == 0
+				&& v.remaining() == v.array().length)
+			return v.array();
+		byte[] r = new byte[v.remaining()];
+		v.duplicate().get(r);
+		return r;
+	}
+
+	private byte[] pageName(int page) {
+		if (page < pageNames.length)
+			return pageNames[page];
+		return encodePageName(page);
+	}
+
+	private byte[] encodePageName(int page) {
+		return colPage.append(Constants.encodeASCII(String.format("%08x",
+				Integer.valueOf(page))));
+	}
+
 	public void put(PackChunk.Members chunk, WriteBuffer buffer)
 			throws DhtException {
 		CsBuffer buf = (CsBuffer) buffer;
 		List<HColumn<byte[], byte[]>> cols = new ArrayList<HColumn<byte[], byte[]>>(4);
+		byte[] data = chunk.getChunkData();
+
+		if (data != null && 0 < pageSize && pageSize < data.length) {
+			// Each page is its own row write, so pages can be split across
+			// batches. Wait for all of them before the page count is
+			// buffered with the index, so no reader sees a count without
+			// its pages.
+			byte[] rowKey = chunk.getChunkKey().asBytes();
+			int count = 0;
+			for (int ptr = 0; ptr < data.length; ptr += pageSize) {
+				int end = Math.min(data.length, ptr + pageSize);
+				buf.put(CF, rowKey, pageName(count++),
+						Arrays.copyOfRange(data, ptr, end));
+			}
+
+			buf.barrier();
 
-		if (chunk.getChunkData() != null)
-			cols.add(createColumn(colChunk.name(), chunk.getChunkData(), S, S));
+			byte[] pages = new byte[8];
+			NB.encodeInt32(pages, 0, count);
+			NB.encodeInt32(pages, 4, data.length);
+			cols.add(createColumn(colPages.name(), pages, S, S));
+
+		} else if (data != null)
+			cols.add(createColumn(colChunk.name(), data, S, S));
 
 		if (chunk.getChunkIndex() != null)
 			cols.add(createColumn(colIndex.name(), chunk.getChunkIndex(), S, S));
@@ -156,10 +532,37 @@ final class CsChunkTable implements ChunkTable {
 			cols.add(createColumn(colMeta.name(), chunk.getMeta().asBytes(), S, S));
 
 		buf.put(CF, chunk.getChunkKey().asBytes(), cols);
+		invalidate(chunk.getChunkKey());
 	}
 
 	public void remove(ChunkKey key, WriteBuffer buffer) throws DhtException {
 		CsBuffer buf = (CsBuffer) buffer;
 		buf.deleteRow(CF, key.asBytes());
+		invalidate(key);
+	}
+
+	/** @return number of chunk reads served by another thread's query. */
+	long getCoalescedCount() {
+		return inflight.getCoalescedCount();
+	}
+
+	/** @return the read-ahead stage; null if read-ahead is disabled. */
+	CsReadAhead getReadAhead() {
+		return readAhead;
+	}
+
+	void shutdown() {
+		if (readAhead != null)
+			readAhead.cancel();
+	}
+
+	private void invalidate(ChunkKey key) {
+		CsChunkCache cache = db.getChunkCache();
+		if (cache != null)
+			cache.remove(key);
+
+		CsDiskChunkCache diskCache = db.getDiskChunkCache();
+		if (diskCache != null)
+			diskCache.remove(key);
 	}
 }
@@ -0,0 +1,649 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.ChunkMeta;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.PackChunk;
+
+/**
+ * Second level chunk cache stored in memory mapped files on local disk.
+ * <p>
+ * The cache is a ring of fixed size segment files. New chunks are appended to
+ * the current segment; once it fills the oldest segment is recycled and all
+ * entries in it are dropped. Chunk bytes live only in the mapped files, so a
+ * large working set does not add to the Java heap, and because the segments
+ * are scanned when the cache is opened the entries survive a restart.
+ * <p>
+ * Each entry carries a CRC-32 of its lengths, key and payload, which is
+ * verified before the entry is returned. Damaged entries are discarded and
+ * count as a miss. A lock file keeps a second process from mapping the same
+ * directory.
+ * <p>
+ * As in {@link CsChunkCache}, a read takes the key's
+ * {@link #generation(ChunkKey)} before querying the cluster, and its result
+ * is not stored if the chunk was removed in between.
+ * <p>
+ * A hit copies the entry out of the mapped file once, into a single array
+ * that the returned chunk's data and index refer to. The mapped bytes cannot
+ * be handed out directly, as the segment is overwritten when it is recycled.
+ */
+final class CsDiskChunkCache {
+	private static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final int SEGMENT_MAGIC = 0x4a474353; // JGCS
+
+	private static final int SEGMENT_VERSION = 2;
+
+	/** Segment header: magic, version, generation. */
+	private static final int SEGMENT_HDR = 4 + 4 + 8;
+
+	private static final int ENTRY_LIVE = 0x4a434531;
+
+	private static final int ENTRY_DEAD = 0x4a434430;
+
+	/** Entry header: magic, key, data, index, meta lengths, CRC-32. */
+	private static final int ENTRY_HDR = 4 + 4 + 4 + 4 + 4 + 4;
+
+	/** Number of invalidation counters; keys sharing one share a count. */
+	private static final int GENERATIONS = 4096;
+
+	private final File directory;
+
+	private final long limit;
+
+	private final int segmentSize;
+
+	private final Segment[] segments;
+
+	private final Map<ChunkKey, Location> index;
+
+	private final ReadWriteLock lock;
+
+	private final AtomicLongArray generations;
+
+	private final RandomAccessFile lockFile;
+
+	private final FileLock fileLock;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong corrupt = new AtomicLong();
+
+	private Segment current;
+
+	private long generation;
+
+	CsDiskChunkCache(File directory, long limit) throws DhtException {
+		int cnt = (int) Math.max(2, (limit + MAX_SEGMENT_SIZE - 1)
+				/ MAX_SEGMENT_SIZE);
+
+		this.directory = directory;
+		this.limit = limit;
+		this.segmentSize = (int) Math.min(MAX_SEGMENT_SIZE, limit / cnt);
+		this.segments = new Segment[cnt];
+		this.index = new HashMap<ChunkKey, Location>();
+		this.lock = new ReentrantReadWriteLock();
+		this.generations = new AtomicLongArray(GENERATIONS);
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new DhtException("Cannot create " + directory);
+
+		try {
+			lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+		} catch (IOException err) {
+			throw new DhtException("Cannot lock chunk cache in " + directory,
+					err);
+		}
+		fileLock = tryLock(lockFile);
+		if (fileLock == null) {
+			closeQuietly(lockFile);
+			throw new DhtException("Chunk cache " + directory
+					+ " is in use by another process");
+		}
+
+		try {
+			for (int i = 0; i < cnt; i++) {
+				segments[i] = new Segment(i, new File(directory, String.format(
+						"chunks-%04d.seg", i)));
+				Segment s = segments[i];
+				s.scan();
+				if (current == null || current.generation < s.generation)
+					current = s;
+				generation = Math.max(generation, s.generation);
+			}
+		} catch (IOException err) {
+			close();
+			throw new DhtException("Cannot open chunk cache in "
+					+ directory, err);
+		}
+	}
+
+	/**
+	 * Lookup a chunk in the cache.
+	 *
+	 * @param key
+	 *            the chunk to find.
+	 * @return the cached chunk; null if it is not in the cache, or the stored
+	 *         copy is damaged.
+	 */
+	PackChunk.Members get(ChunkKey key) {
+		Location loc;
+		PackChunk.Members m;
+
+		lock.readLock().lock();
+		try {
+			loc = index.get(key);
+			if (loc == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			m = read(key, loc);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (m == null) {
+			corrupt.incrementAndGet();
+			misses.incrementAndGet();
+			discard(key, loc);
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return m;
+	}
+
+	private static PackChunk.Members read(ChunkKey key, Location loc) {
+		Entry e;
+		try {
+			e = loc.segment.read(loc.offset, key);
+		} catch (RuntimeException err) {
+			// A damaged entry is treated as a miss.
+			return null;
+		}
+		if (e == null)
+			return null;
+
+		PackChunk.Members m = new PackChunk.Members();
+		m.setChunkKey(key);
+		int ptr = e.keyLen;
+		if (0 <= e.dataLen) {
+			m.setChunkData(e.buf, ptr, e.dataLen);
+			ptr += e.dataLen;
+		}
+		if (0 <= e.indexLen) {
+			m.setChunkIndex(e.buf, ptr, e.indexLen);
+			ptr += e.indexLen;
+		}
+		if (0 <= e.metaLen) {
+			m.setMeta(ChunkMeta.fromBytes(key, Arrays.copyOfRange(e.buf, ptr,
+					ptr + e.metaLen)));
+		}
+		return m;
+	}
+
+	/**
+	 * Get the invalidation generation of a key.
+	 *
+	 * @param key
+	 *            the chunk about to be read from the cluster.
+	 * @return value to pass to {@link #put(PackChunk.Members, long)}.
+	 */
+	long generation(ChunkKey key) {
+		return generations.get(stripe(key));
+	}
+
+	/**
+	 * Store a chunk read from the cluster.
+	 *
+	 * @param chunk
+	 *            the chunk to store. Chunks larger than a segment are skipped.
+	 * @param gen
+	 *            {@link #generation(ChunkKey)} taken before the read. If the
+	 *            chunk was removed since, nothing is stored.
+	 */
+	void put(PackChunk.Members chunk, long gen) {
+		ByteBuffer key = ByteBuffer.wrap(chunk.getChunkKey().asBytes());
+		ByteBuffer data = null;
+		ByteBuffer idx = null;
+		ByteBuffer meta = null;
+		if (chunk.hasChunkData())
+			data = chunk.getChunkDataAsByteBuffer();
+		if (chunk.hasChunkIndex())
+			idx = chunk.getChunkIndexAsByteBuffer();
+		if (chunk.getMeta() != null)
+			meta = ByteBuffer.wrap(chunk.getMeta().asBytes());
+
+		int sz = ENTRY_HDR + key.remaining() + len(data) + len(idx)
+				+ len(meta);
+		if (segmentSize - SEGMENT_HDR - 4 < sz)
+			return;
+
+		lock.writeLock().lock();
+		try {
+			// remove() bumps the generation under the write lock.
+			if (generations.get(stripe(chunk.getChunkKey())) != gen)
+				return;
+
+			Location old = index.remove(chunk.getChunkKey());
+			if (old != null)
+				old.segment.kill(old.offset);
+
+			if (segmentSize - 4 < current.position + sz)
+				recycle();
+
+			int offset = current.append(key, data, idx, meta);
+			index.put(chunk.getChunkKey(), new Location(current, offset));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Discard a chunk from the cache.
+	 * <p>
+	 * Reads of the chunk already in flight will not store their result.
+	 *
+	 * @param key
+	 *            the chunk to discard.
+	 */
+	void remove(ChunkKey key) {
+		lock.writeLock().lock();
+		try {
+			generations.incrementAndGet(stripe(key));
+			Location loc = index.remove(key);
+			if (loc != null)
+				loc.segment.kill(loc.offset);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void discard(ChunkKey key, Location loc) {
+		lock.writeLock().lock();
+		try {
+			if (index.get(key) == loc) {
+				index.remove(key);
+				loc.segment.kill(loc.offset);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	CacheStats getStatistics() {
+		int cnt;
+		long used = 0;
+		lock.readLock().lock();
+		try {
+			cnt = index.size();
+			for (Segment s : segments)
+				used += s.position;
+		} finally {
+			lock.readLock().unlock();
+		}
+		return new CacheStats(hits.get(), misses.get(), evictions.get(), cnt,
+				used, limit);
+	}
+
+	/** @return number of entries discarded because of a checksum mismatch. */
+	long getCorruptCount() {
+		return corrupt.get();
+	}
+
+	/** Flush dirty pages to disk, release the mapped files and the lock. */
+	void close() {
+		lock.writeLock().lock();
+		try {
+			for (Segment s : segments) {
+				if (s != null)
+					s.close();
+			}
+			index.clear();
+			try {
+				fileLock.release();
+			} catch (IOException err) {
+				// Closing the file below releases the lock too.
+			}
+			closeQuietly(lockFile);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CsDiskChunkCache[" + directory + "]";
+	}
+
+	private void recycle() {
+		Segment next = null;
+		for (Segment s : segments) {
+			if (s != current && (next == null || s.generation < next.generation))
+				next = s;
+		}
+
+		for (Iterator<Location> i = index.values().iterator(); i.hasNext();) {
+			if (i.next().segment == next) {
+				i.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		next.reset(++generation);
+		current = next;
+	}
+
+	private static int stripe(ChunkKey key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return (h >>> 4) & (GENERATIONS - 1);
+	}
+
+	private static FileLock tryLock(RandomAccessFile f) throws DhtException {
+		try {
+			return f.getChannel().tryLock();
+		} catch (OverlappingFileLockException err) {
+			// Another instance in this JVM holds the directory.
+			return null;
+		} catch (IOException err) {
+			closeQuietly(f);
+			throw new DhtException("Cannot lock chunk cache", err);
+		}
+	}
+
+	private static void closeQuietly(RandomAccessFile f) {
+		try {
+			f.close();
+		} catch (IOException err) {
+			// Nothing useful can be done.
+		}
+	}
+
+	private static int len(ByteBuffer b) {
+		return b != null ? b.remaining() : 0;
+	}
+
+	private static void update(CRC32 crc, ByteBuffer b) {
+		if (b.hasArray())
+			crc.update(b.array(), b.arrayOffset() + b.position(),
+					b.remaining());
+		else {
+			byte[] tmp = new byte[b.remaining()];
+			b.duplicate().get(tmp);
+			crc.update(tmp);
+		}
+	}
+
+	/** Body of an entry, copied out of its segment. */
+	private static class Entry {
+		/** Key, data, index and meta, in that order. */
+		final byte[] buf;
+
+		final int keyLen;
+
+		final int dataLen;
+
+		final int indexLen;
+
+		final int metaLen;
+
+		Entry(byte[] buf, int keyLen, int dataLen, int indexLen, int metaLen) {
+			this.buf = buf;
+			this.keyLen = keyLen;
+			this.dataLen = dataLen;
+			this.indexLen = indexLen;
+			this.metaLen = metaLen;
+		}
+	}
+
+	private static class Location {
+		final Segment segment;
+
+		final int offset;
+
+		Location(Segment segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	private class Segment {
+		final int id;
+
+		final RandomAccessFile file;
+
+		final MappedByteBuffer map;
+
+		long generation;
+
+		int position;
+
+		Segment(int id, File path) throws IOException {
+			this.id = id;
+			this.file = new RandomAccessFile(path, "rw");
+			if (file.length() != segmentSize)
+				file.setLength(segmentSize);
+			this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					segmentSize);
+		}
+
+		/** Rebuild the index from the entries stored in this segment. */
+		void scan() {
+			if (map.getInt(0) != SEGMENT_MAGIC
+					|| map.getInt(4) != SEGMENT_VERSION) {
+				reset(0);
+				return;
+			}
+
+			generation = map.getLong(8);
+			position = SEGMENT_HDR;
+			for (;;) {
+				int sz = entrySize(position);
+				if (sz < 0)
+					break;
+
+				if (map.getInt(position) == ENTRY_LIVE) {
+					byte[] key = new byte[map.getInt(position + 4)];
+					ByteBuffer b = map.duplicate();
+					b.position(position + ENTRY_HDR);
+					b.get(key);
+					index.put(ChunkKey.fromBytes(key), new Location(this,
+							position));
+				}
+				position += sz;
+			}
+		}
+
+		/** @return size of the entry at {@code pos}; -1 if there is none. */
+		private int entrySize(int pos) {
+			if (segmentSize < pos + ENTRY_HDR)
+				return -1;
+
+			int magic = map.getInt(pos);
+			if (magic != ENTRY_LIVE && magic != ENTRY_DEAD)
+				return -1;
+
+			int keyLen = map.getInt(pos + 4);
+			if (keyLen <= 0 || segmentSize < keyLen)
+				return -1;
+
+			long sz = ENTRY_HDR + keyLen;
+			for (int i = 0; i < 3; i++) {
+				int n = map.getInt(pos + 8 + 4 * i);
+				if (n < -1 || segmentSize < n)
+					return -1;
+				sz += Math.max(0, n);
+			}
+			if (segmentSize < pos + sz)
+				return -1;
+			return (int) sz;
+		}
+
+		void reset(long gen) {
+			generation = gen;
+			position = SEGMENT_HDR;
+			map.putInt(0, SEGMENT_MAGIC);
+			map.putInt(4, SEGMENT_VERSION);
+			map.putLong(8, gen);
+			map.putInt(SEGMENT_HDR, 0);
+		}
+
+		int append(ByteBuffer key, ByteBuffer data, ByteBuffer idx,
+				ByteBuffer meta) {
+			int offset = position;
+			CRC32 crc = new CRC32();
+			ByteBuffer b = map.duplicate();
+
+			b.position(offset + 4);
+			b.putInt(key.remaining());
+			b.putInt(data != null ? data.remaining() : -1);
+			b.putInt(idx != null ? idx.remaining() : -1);
+			b.putInt(meta != null ? meta.remaining() : -1);
+			crc.update(lengths(offset));
+			b.position(offset + ENTRY_HDR);
+			for (ByteBuffer p : new ByteBuffer[] { key, data, idx, meta }) {
+				if (p != null) {
+					update(crc, p);
+					b.put(p.duplicate());
+				}
+			}
+
+			position = b.position();
+			if (position + 4 <= segmentSize)
+				map.putInt(position, 0);
+			map.putInt(offset + 20, (int) crc.getValue());
+			map.putInt(offset, ENTRY_LIVE);
+			return offset;
+		}
+
+		/**
+		 * Read an entry.
+		 *
+		 * @param offset
+		 *            position of the entry header.
+		 * @param key
+		 *            chunk the entry is expected to hold.
+		 * @return the entry; null if it is not live, its lengths do not fit
+		 *         the segment, the CRC does not match, or it holds another
+		 *         chunk.
+		 */
+		Entry read(int offset, ChunkKey key) {
+			int sz = entrySize(offset);
+			if (sz < 0 || map.getInt(offset) != ENTRY_LIVE)
+				return null;
+
+			int keyLen = map.getInt(offset + 4);
+			int dataLen = map.getInt(offset + 8);
+			int indexLen = map.getInt(offset + 12);
+			int metaLen = map.getInt(offset + 16);
+			byte[] buf = new byte[sz - ENTRY_HDR];
+
+			ByteBuffer b = map.duplicate();
+			b.position(offset + ENTRY_HDR);
+			b.get(buf);
+
+			CRC32 crc = new CRC32();
+			crc.update(lengths(offset));
+			crc.update(buf);
+			if ((int) crc.getValue() != map.getInt(offset + 20))
+				return null;
+			if (!Arrays.equals(key.asBytes(), Arrays.copyOf(buf, keyLen)))
+				return null;
+			return new Entry(buf, keyLen, dataLen, indexLen, metaLen);
+		}
+
+		/** @return the four length fields of the entry header. */
+		private byte[] lengths(int offset) {
+			byte[] hdr = new byte[16];
+			ByteBuffer b = map.duplicate();
+			b.position(offset + 4);
+			b.get(hdr);
+			return hdr;
+		}
+
+		void kill(int offset) {
+			map.putInt(offset, ENTRY_DEAD);
+		}
+
+		void close() {
+			try {
+				map.force();
+				file.close();
+			} catch (IOException err) {
+				// Ignore close failures, the entries will be rescanned.
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Segment[" + id + ", gen=" + generation + "]";
+		}
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.storage.dht.DhtException;
+
+/**
+ * Sends a second copy of a slow read, and uses whichever answers first.
+ * <p>
+ * The latency of recent reads is tracked per column family. A read that has
+ * not completed after the configured percentile of that latency is sent
+ * again; Hector's pool normally picks a different host for the copy, so a
+ * replica stalled by compaction or garbage collection only delays the reads
+ * it received first. Until enough reads of a family have been timed, its
+ * reads are not hedged.
+ * <p>
+ * Both copies run on a bounded pool of their own, as the caller is often a
+ * thread of the read pool and blocks while it waits for them. When that pool
+ * is saturated the read runs on the caller and is not hedged. Once a copy
+ * succeeds the other one is cancelled.
+ */
+final class CsHedge {
+	private static final int SAMPLES = 1024;
+
+	private static final int MIN_SAMPLES = 100;
+
+	private static final int RECOMPUTE_EVERY = 64;
+
+	private final ThreadPoolExecutor executor;
+
+	private final double percentile;
+
+	private final long minDelay;
+
+	private final ConcurrentMap<String, Latency> families;
+
+	private final AtomicLong hedged = new AtomicLong();
+
+	private final AtomicLong won = new AtomicLong();
+
+	/**
+	 * @param percentile
+	 *            percentile of recent latency after which a read is hedged,
+	 *            between 0 and 100.
+	 * @param minDelay
+	 *            minimum milliseconds to wait before hedging.
+	 * @param threads
+	 *            maximum number of copies running at once.
+	 */
+	CsHedge(double percentile, long minDelay, int threads) {
+		this.executor = new ThreadPoolExecutor(0, threads, 60,
+				TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "JGit-Cassandra-Hedge");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.percentile = percentile;
+		this.minDelay = TimeUnit.MILLISECONDS.toNanos(minDelay);
+		this.families = new ConcurrentHashMap<String, Latency>();
+	}
+
+	/**
+	 * Run a read, hedging it if it is slow.
+	 *
+	 * @param family
+	 *            column family the read belongs to.
+	 * @param query
+	 *            the read; may be invoked twice, concurrently.
+	 * @return result of the first copy to succeed.
+	 * @throws Exception
+	 *             every copy of the read failed; the first failure.
+	 */
+	<T> T read(String family, Callable<T> query) throws Exception {
+		Latency lat = latency(family);
+		long delay = lat.threshold();
+		if (delay < 0)
+			return direct(lat, query);
+
+		Race<T> race = new Race<T>(lat);
+		if (!race.start(query, false))
+			return direct(lat, query);
+		if (!race.await(Math.max(delay, minDelay))
+				&& race.start(query, true))
+			hedged.incrementAndGet();
+		race.await();
+		return race.get();
+	}
+
+	private static <T> T direct(Latency lat, Callable<T> query)
+			throws Exception {
+		long start = System.nanoTime();
+		T r = query.call();
+		lat.add(System.nanoTime() - start);
+		return r;
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/** @return number of reads that were sent a second time. */
+	long getHedgedCount() {
+		return hedged.get();
+	}
+
+	/** @return number of hedged reads answered first by the second copy. */
+	long getWonCount() {
+		return won.get();
+	}
+
+	/**
+	 * @param sorted
+	 *            samples in ascending order; at least one.
+	 * @param pct
+	 *            the percentile, between 0 and 100.
+	 * @return smallest sample not below {@code pct} percent of the samples.
+	 */
+	static long percentile(long[] sorted, double pct) {
+		int n = sorted.length;
+		int idx = (int) Math.ceil(pct / 100 * n) - 1;
+		return sorted[Math.max(0, Math.min(n - 1, idx))];
+	}
+
+	private Latency latency(String family) {
+		Latency lat = families.get(family);
+		if (lat == null) {
+			lat = new Latency();
+			Latency old = families.putIfAbsent(family, lat);
+			if (old != null)
+				lat = old;
+		}
+		return lat;
+	}
+
+	private class Latency {
+		private final long[] samples = new long[SAMPLES];
+
+		private int count;
+
+		private int next;
+
+		private long threshold = -1;
+
+		synchronized void add(long nanos) {
+			samples[next] = nanos;
+			next = (next + 1) % SAMPLES;
+			count++;
+			if (MIN_SAMPLES <= count && count % RECOMPUTE_EVERY == 0) {
+				int n = Math.min(count, SAMPLES);
+				long[] sorted = Arrays.copyOf(samples, n);
+				Arrays.sort(sorted);
+				threshold = percentile(sorted, percentile);
+			}
+		}
+
+		synchronized long threshold() {
+			return threshold;
+		}
+	}
+
+	private class Race<T> {
+		private final Latency lat;
+
+		private final List<Copy> copies = new ArrayList<Copy>(2);
+
+		private int running;
+
+		private boolean done;
+
+		private boolean ok;
+
+		private T result;
+
+		private Exception error;
+
+		Race(Latency lat) {
+			this.lat = lat;
+		}
+
+		/**
+		 * @return true if the copy was started; false if the pool is full.
+		 */
+		synchronized boolean start(final Callable<T> query,
+				final boolean hedge) {
+			if (done)
+				return false;
+			Copy c = new Copy(query, hedge);
+			try {
+				executor.execute(c);
+			} catch (RejectedExecutionException full) {
+				return false;
+			}
+			copies.add(c);
+			running++;
+			return true;
+		}
+
+		synchronized void succeeded(T r, Copy winner) {
+			running--;
+			if (!done) {
+				done = true;
+				ok = true;
+				result = r;
+				if (winner.hedge)
+					won.incrementAndGet();
+				for (Copy c : copies) {
+					if (c != winner)
+						c.cancel(true);
+				}
+				notifyAll();
+			}
+		}
+
+		synchronized void failed(Exception err) {
+			running--;
+			if (error == null)
+				error = err;
+			if (!done && running == 0) {
+				done = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * @return true if the race is over; false if the wait timed out while
+		 *         a copy of the read was still running.
+		 */
+		synchronized boolean await(long nanos) throws DhtException {
+			long deadline = System.nanoTime() + nanos;
+			try {
+				while (!done) {
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0)
+						return false;
+					TimeUnit.NANOSECONDS.timedWait(this, wait);
+				}
+				return true;
+			} catch (InterruptedException err) {
+				Thread.currentThread().interrupt();
+				throw new DhtException(err);
+			}
+		}
+
+		synchronized void await() throws DhtException {
+			try {
+				while (!done)
+					wait();
+			} catch (InterruptedException err) {
+				Thread.currentThread().interrupt();
+				throw new DhtException(err);
+			}
+		}
+
+		synchronized T get() throws Exception {
+			if (!ok)
+				throw error;
+			return result;
+		}
+
+		/** One copy of the read; reports its outcome to the race. */
+		private class Copy extends FutureTask<T> {
+			final boolean hedge;
+
+			Copy(final Callable<T> query, boolean hedge) {
+				super(new Callable<T>() {
+					public T call() throws Exception {
+						long start = System.nanoTime();
+						T r = query.call();
+						lat.add(System.nanoTime() - start);
+						return r;
+					}
+				});
+				this.hedge = hedge;
+			}
+
+			@Override
+			protected void done() {
+				try {
+					succeeded(get(), this);
+				} catch (ExecutionException err) {
+					Throwable cause = err.getCause();
+					if (cause instanceof Exception)
+						failed((Exception) cause);
+					else
+						failed(err);
+				} catch (CancellationException err) {
+					failed(err);
+				} catch (InterruptedException err) {
+					failed(err);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import me.prettyprint.cassandra.connection.ConcurrentHClientPool;
+import me.prettyprint.cassandra.connection.HClientPool;
+import me.prettyprint.cassandra.connection.LoadBalancingPolicy;
+import me.prettyprint.cassandra.service.CassandraHost;
+import me.prettyprint.hector.api.ResultStatus;
+
+/**
+ * Sends operations to the hosts that have recently answered fastest.
+ * <p>
+ * Each host's latency is tracked as an exponentially weighted moving average
+ * of the execution times Hector reports for queries sent to it. A host is
+ * scored by its average latency times one more than the operations it has in
+ * flight. Of two hosts picked at random, the one with the lower score is
+ * used, which steers traffic away from a node that is compacting or paused
+ * without sending everything to a single fastest node.
+ * <p>
+ * When an attempt fails, Hector fails over and asks for another pool, passing
+ * the hosts that already failed the operation. Each of those hosts is counted
+ * once per operation as a slow measurement. The failure of an operation's
+ * last attempt is not reported to the policy and is not counted. A host
+ * without a recent measurement scores as the average of the other hosts, so
+ * it is tried again soon without being preferred over every measured host.
+ */
+final class CsLatencyBalancingPolicy implements LoadBalancingPolicy {
+	private static final long serialVersionUID = 1L;
+
+	/** Weight of a new measurement in the moving average. */
+	private static final double ALPHA = 0.2;
+
+	/** Measurements older than this are not trusted. */
+	private static final long STALE_MILLIS = 10 * 1000;
+
+	/** Latency recorded for an operation that failed, in microseconds. */
+	private static final long FAILURE_MICROS = 1000 * 1000;
+
+	private final ConcurrentMap<CassandraHost, Score> scores;
+
+	private final Random random;
+
+	/**
+	 * Failed hosts already counted for the operation this thread is failing
+	 * over. Hector retries an operation on the thread that started it, with
+	 * the same exclusion set.
+	 */
+	private final transient ThreadLocal<Failover> failover;
+
+	CsLatencyBalancingPolicy() {
+		scores = new ConcurrentHashMap<CassandraHost, Score>();
+		random = new Random();
+		failover = new ThreadLocal<Failover>();
+	}
+
+	public HClientPool getPool(Collection<HClientPool> pools,
+			Set<CassandraHost> excludeHosts) {
+		List<HClientPool> live = new ArrayList<HClientPool>(pools.size());
+		if (excludeHosts != null && !excludeHosts.isEmpty()) {
+			failed(excludeHosts);
+			for (HClientPool p : pools)
+				if (!excludeHosts.contains(p.getCassandraHost()))
+					live.add(p);
+		}
+		if (live.isEmpty())
+			live.addAll(pools);
+
+		int n = live.size();
+		if (n == 1)
+			return live.get(0);
+
+		HClientPool a = live.get(random.nextInt(n));
+		HClientPool b = live.get(random.nextInt(n));
+		double fallback = freshAverage();
+		return score(a, fallback) <= score(b, fallback) ? a : b;
+	}
+
+	public HClientPool createConnection(CassandraHost host) {
+		return new ConcurrentHClientPool(host);
+	}
+
+	/**
+	 * Record the latency of an operation.
+	 *
+	 * @param result
+	 *            result of a query or mutation.
+	 */
+	void record(ResultStatus result) {
+		CassandraHost host = result.getHostUsed();
+		if (host == null)
+			return;
+
+		score(host).add(result.getExecutionTimeMicro());
+	}
+
+	/**
+	 * Count the hosts that failed an operation being retried.
+	 *
+	 * @param excludeHosts
+	 *            hosts Hector excluded from the retry because they failed.
+	 */
+	private void failed(Set<CassandraHost> excludeHosts) {
+		Failover f = failover.get();
+		if (f == null || f.excludeHosts != excludeHosts) {
+			f = new Failover(excludeHosts);
+			failover.set(f);
+		}
+		for (CassandraHost host : excludeHosts) {
+			if (f.counted.add(host))
+				score(host).add(FAILURE_MICROS);
+		}
+	}
+
+	private Score score(CassandraHost host) {
+		Score s = scores.get(host);
+		if (s == null) {
+			s = new Score();
+			Score old = scores.putIfAbsent(host, s);
+			if (old != null)
+				s = old;
+		}
+		return s;
+	}
+
+	/** @return average latency of each host, in milliseconds. */
+	Map<String, Double> getLatencies() {
+		Map<String, Double> r = new TreeMap<String, Double>();
+		for (Map.Entry<CassandraHost, Score> e : scores.entrySet())
+			r.put(e.getKey().getName(),
+					Double.valueOf(e.getValue().average() / 1000));
+		return Collections.unmodifiableMap(r);
+	}
+
+	private double score(HClientPool pool, double fallback) {
+		Score s = scores.get(pool.getCassandraHost());
+		double avg;
+		if (s == null || s.isStale())
+			avg = fallback;
+		else
+			avg = s.average();
+		return avg * (1 + pool.getNumActive());
+	}
+
+	/** @return mean latency of the hosts measured recently; 0 if none. */
+	private double freshAverage() {
+		double sum = 0;
+		int n = 0;
+		for (Score s : scores.values()) {
+			if (!s.isStale()) {
+				sum += s.average();
+				n++;
+			}
+		}
+		return n == 0 ? 0 : sum / n;
+	}
+
+	private static class Failover {
+		final Set<CassandraHost> excludeHosts;
+
+		final Set<CassandraHost> counted = new HashSet<CassandraHost>();
+
+		Failover(Set<CassandraHost> excludeHosts) {
+			this.excludeHosts = excludeHosts;
+		}
+	}
+
+	private static class Score {
+		private double average;
+
+		private long updated;
+
+		synchronized void add(long micros) {
+			if (updated == 0)
+				average = micros;
+			else
+				average += ALPHA * (micros - average);
+			updated = System.currentTimeMillis();
+		}
+
+		synchronized double average() {
+			return average;
+		}
+
+		synchronized boolean isStale() {
+			return STALE_MILLIS < System.currentTimeMillis() - updated;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.StreamingCallback;
+
+/**
+ * Runs a multiget as several smaller sub-batches on a thread pool.
+ * <p>
+ * At most {@code concurrency} sub-batches of one request are in flight at
+ * once. Each pool task reads sub-batches one after another until none are
+ * left, merging each result into the request's result, so a request holds
+ * at most {@code concurrency} threads of this pool and does not go back
+ * through the pool's queue between sub-batches. Reads are still blocking:
+ * when {@link CsHedge} is enabled a pool thread waits while its sub-batch
+ * runs on the hedge pool, as one copy or two once the read is hedged, so a
+ * request may hold up to three times {@code concurrency} threads in total.
+ * The caller's callback is invoked exactly once, from the thread that read
+ * the last sub-batch, after it has been merged or the first one failed.
+ * <p>
+ * If the callback is a {@link StreamingCallback}, results are not merged.
+ * Cached entries and each sub-batch are instead passed to
+ * {@link StreamingCallback#onPartialResult(Object)} as soon as they are
+ * available, one call at a time, and {@code onSuccess} receives an empty
+ * result once every sub-batch has been delivered.
+ *
+ * @param <K>
+ *            type of the row keys.
+ * @param <T>
+ *            type of the result passed to the callback.
+ */
+abstract class CsMultiget<K, T> {
+	private final ExecutorService executor;
+
+	private final AsyncCallback<T> callback;
+
+	private final StreamingCallback<T> streaming;
+
+	private final Object deliveryLock;
+
+	private final LinkedList<List<K>> pending;
+
+	private T result;
+
+	private int remaining;
+
+	private boolean failed;
+
+	/**
+	 * @param executor
+	 *            pool to run the sub-batches on.
+	 * @param callback
+	 *            receives the result.
+	 */
+	CsMultiget(ExecutorService executor, AsyncCallback<T> callback) {
+		this.executor = executor;
+		this.callback = callback;
+		this.streaming = streaming(callback);
+		this.deliveryLock = new Object();
+		this.pending = new LinkedList<List<K>>();
+	}
+
+	/** @return the callback if it accepts partial results; otherwise null. */
+	@SuppressWarnings("unchecked")
+	private static <T> StreamingCallback<T> streaming(AsyncCallback<T> cb) {
+		// StreamingCallback<T> extends AsyncCallback<T>, so a callback of
+		// AsyncCallback<T> that is streaming takes the same T.
+		if (cb instanceof StreamingCallback)
+			return (StreamingCallback<T>) cb;
+		return null;
+	}
+
+	/** @return a new empty result. */
+	protected abstract T newResult();
+
+	/**
+	 * Read one sub-batch from the cluster.
+	 *
+	 * @param keys
+	 *            keys of the sub-batch.
+	 * @return result for these keys.
+	 * @throws Exception
+	 *             the read failed.
+	 */
+	protected abstract T read(List<K> keys) throws Exception;
+
+	/**
+	 * Merge one sub-batch's result into the request's result.
+	 * <p>
+	 * Invoked while holding the lock of this object.
+	 *
+	 * @param into
+	 *            the request's result.
+	 * @param part
+	 *            result returned by {@link #read(List)}.
+	 */
+	protected abstract void merge(T into, T part);
+
+	/**
+	 * Split the keys and start the first sub-batches.
+	 *
+	 * @param keys
+	 *            keys to read.
+	 * @param cached
+	 *            entries already found in a cache; null if there are none.
+	 * @param batchSize
+	 *            maximum number of keys per sub-batch.
+	 * @param concurrency
+	 *            maximum number of sub-batches in flight.
+	 */
+	void start(Iterable<K> keys, T cached, int batchSize, int concurrency) {
+		List<K> batch = null;
+		for (K key : keys) {
+			if (batch == null || batch.size() == batchSize) {
+				batch = new ArrayList<K>(batchSize);
+				pending.add(batch);
+			}
+			batch.add(key);
+		}
+
+		result = newResult();
+		remaining = pending.size();
+
+		if (cached != null) {
+			if (streaming != null) {
+				if (!deliver(cached))
+					return;
+			} else
+				merge(result, cached);
+		}
+
+		if (remaining == 0) {
+			callback.onSuccess(result);
+			return;
+		}
+
+		int n = Math.min(Math.max(1, concurrency), remaining);
+		for (int i = 0; i < n; i++)
+			startNext();
+	}
+
+	private void startNext() {
+		final List<K> first = next();
+		if (first == null)
+			return;
+
+		try {
+			executor.execute(new CsThreadPool.Task() {
+				public void run() {
+					List<K> keys = first;
+					while (keys != null && read1(keys))
+						keys = next();
+				}
+
+				public void abort(DhtException err) {
+					fail(err);
+				}
+			});
+		} catch (RejectedExecutionException err) {
+			fail(err);
+		}
+	}
+
+	private synchronized List<K> next() {
+		if (failed || pending.isEmpty())
+			return null;
+		return pending.removeFirst();
+	}
+
+	private boolean read1(List<K> keys) {
+		T part;
+		try {
+			part = read(keys);
+		} catch (Throwable err) {
+			fail(err);
+			return false;
+		}
+
+		if (streaming != null && !deliver(part))
+			return false;
+
+		boolean done;
+		synchronized (this) {
+			if (failed)
+				return false;
+			if (streaming == null)
+				merge(result, part);
+			done = --remaining == 0;
+		}
+
+		if (done) {
+			try {
+				callback.onSuccess(result);
+			} catch (Throwable err) {
+				callback.onFailure(new DhtException(err));
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private boolean deliver(T part) {
+		synchronized (deliveryLock) {
+			synchronized (this) {
+				if (failed)
+					return false;
+			}
+			try {
+				streaming.onPartialResult(part);
+				return true;
+			} catch (Throwable err) {
+				fail(err);
+				return false;
+			}
+		}
+	}
+
+	private void fail(Throwable err) {
+		synchronized (this) {
+			if (failed)
+				return;
+			failed = true;
+			pending.clear();
+		}
+
+		if (err instanceof DhtException)
+			callback.onFailure((DhtException) err);
+		else
+			callback.onFailure(new DhtException(err));
+	}
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+
+/**
+ * Per-repository Bloom filters answering "definitely missing" for objects.
+ * <p>
+ * Each repository's filter is stored as a single column of its row in the
+ * Repository family, and is loaded into memory in the background on first
+ * use. Objects added to the ObjectIndex are added to the in-memory filter as
+ * they are buffered; keys added before the filter has loaded are kept and
+ * added once it arrives.
+ * <p>
+ * Other processes add objects to the stored filter, so the in-memory copy is
+ * merged with the stored one again once it is {@link #REFRESH} old. Until
+ * the reload completes the filter is not consulted, so an object pushed
+ * through another process is not rejected for longer than that.
+ * <p>
+ * When a write buffer is flushed the filter is merged with the stored copy
+ * and written back in the background; flushes arriving while a write is
+ * running are served by one more write, so a repository's filter is written
+ * at most once at a time however many pushes are flushing. The keys added
+ * since the last write are kept, so they can be added again if the stored
+ * filter was rebuilt with a different size.
+ * <p>
+ * A filter written concurrently by two processes may lose bits, so it is only
+ * consulted for {@code Context.FAST_MISSING_OK} lookups, whose callers retry a
+ * miss with a stronger read. Repositories without a stored filter are never
+ * filtered; {@link #rebuild(RepositoryKey)} creates one from the ObjectIndex.
+ */
+final class CsObjectBloom {
+	/** Milliseconds a loaded filter is used before it is reloaded. */
+	static final long REFRESH = 60 * 1000;
+
+	private final CassandraDatabase db;
+
+	private final long expectedObjects;
+
+	private final ConcurrentMap<Integer, Filter> filters;
+
+	private final AtomicLong rejects = new AtomicLong();
+
+	private final AtomicLong falsePositives = new AtomicLong();
+
+	private final AtomicLong passes = new AtomicLong();
+
+	CsObjectBloom(CassandraDatabase db, long expectedObjects) {
+		this.db = db;
+		this.expectedObjects = expectedObjects;
+		this.filters = new ConcurrentHashMap<Integer, Filter>();
+	}
+
+	/**
+	 * Get a repository's filter without waiting for it to load.
+	 *
+	 * @param repositoryId
+	 *            the repository.
+	 * @return the filter; null if it is still loading, is due to be reloaded,
+	 *         or the repository has no filter.
+	 */
+	CsBloomFilter peek(int repositoryId) {
+		Filter f = filter(repositoryId);
+		if (f.isFresh())
+			return f.bloom;
+		load(f);
+		return null;
+	}
+
+	private void load(final Filter f) {
+		if (f.startLoad()) {
+			db.submit(new Runnable() {
+				public void run() {
+					try {
+						if (f.load())
+							persist(f.repo.asInt());
+					} catch (DhtException err) {
+						// Try again on the next lookup.
+						f.loadFailed();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Store an empty filter for a newly created repository.
+	 *
+	 * @param repo
+	 *            the new repository.
+	 * @throws DhtException
+	 *             the filter cannot be written.
+	 */
+	void create(RepositoryKey repo) throws DhtException {
+		CsBloomFilter bloom = CsBloomFilter.create(expectedObjects);
+		repositoryTable().putObjectBloom(repo, bloom.asBytes());
+		filter(repo.asInt()).set(bloom);
+	}
+
+	/**
+	 * Add an object to its repository's filter.
+	 * <p>
+	 * If the filter has not been loaded yet the load is started in the
+	 * background and the key is added once it completes.
+	 *
+	 * @param key
+	 *            the object being added to the ObjectIndex.
+	 * @return true if the repository may have a filter that must be persisted.
+	 */
+	boolean add(ObjectIndexKey key) {
+		Filter f = filter(key.getRepositoryId());
+		if (!f.loaded)
+			load(f);
+		return f.add(key);
+	}
+
+	/**
+	 * Schedule writing a repository's filter after objects were added.
+	 *
+	 * @param repositoryId
+	 *            the repository.
+	 */
+	void persist(int repositoryId) {
+		final Filter f = filter(repositoryId);
+		if (f.requestWrite()) {
+			db.submit(new Runnable() {
+				public void run() {
+					while (f.startWrite()) {
+						try {
+							write(f);
+						} catch (DhtException err) {
+							// Keep the keys; the next flush tries again.
+							f.writeFailed();
+							return;
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private void write(Filter f) throws DhtException {
+		byte[] raw = repositoryTable().getObjectBloom(f.repo);
+		CsBloomFilter stored = raw != null ? parse(raw) : null;
+		CsBloomFilter mem = f.bloom;
+		if (stored != null && mem != null && !stored.sameShape(mem)) {
+			// The filter was rebuilt by another process. Use its shape, with
+			// the objects this process added since its last write.
+			f.replace(stored);
+			mem = stored;
+		} else if (stored != null && mem != null)
+			mem.merge(stored);
+
+		if (mem != null)
+			repositoryTable().putObjectBloom(f.repo, mem.asBytes());
+		f.written();
+	}
+
+	/**
+	 * Recreate a repository's filter from the ObjectIndex.
+	 * <p>
+	 * The ObjectIndex is scanned twice, once to size the filter for twice the
+	 * current number of objects and once to fill it.
+	 *
+	 * @param repo
+	 *            the repository.
+	 * @return number of objects added to the new filter.
+	 * @throws DhtException
+	 *             the ObjectIndex cannot be scanned, or the filter written.
+	 */
+	long rebuild(RepositoryKey repo) throws DhtException {
+		CsObjectIndexTable idx = (CsObjectIndexTable) db.objectIndex();
+		long cnt = idx.scan(repo, null);
+
+		CsBloomFilter bloom = CsBloomFilter.create(Math.max(expectedObjects,
+				2 * cnt));
+		cnt = idx.scan(repo, bloom);
+
+		repositoryTable().putObjectBloom(repo, bloom.asBytes());
+		filter(repo.asInt()).set(bloom);
+		return cnt;
+	}
+
+	/** Record a lookup the filter answered as missing. */
+	void rejected() {
+		rejects.incrementAndGet();
+	}
+
+	/**
+	 * Record lookups the filter passed on to the cluster.
+	 *
+	 * @param cnt
+	 *            number of objects the filter passed.
+	 * @param missing
+	 *            number of those objects the cluster did not have; these are
+	 *            the filter's false positives.
+	 */
+	void passed(int cnt, int missing) {
+		passes.addAndGet(cnt);
+		falsePositives.addAndGet(missing);
+	}
+
+	BloomFilterStats getStatistics() {
+		return new BloomFilterStats(rejects.get(), falsePositives.get(),
+				passes.get(), filters.size());
+	}
+
+	private CsRepositoryTable repositoryTable() {
+		return (CsRepositoryTable) db.repository();
+	}
+
+	private Filter filter(int repositoryId) {
+		Integer id = Integer.valueOf(repositoryId);
+		Filter f = filters.get(id);
+		if (f == null) {
+			f = new Filter(RepositoryKey.create(repositoryId));
+			Filter old = filters.putIfAbsent(id, f);
+			if (old != null)
+				f = old;
+		}
+		return f;
+	}
+
+	private static CsBloomFilter parse(byte[] raw) {
+		try {
+			return CsBloomFilter.fromBytes(raw);
+		} catch (IllegalArgumentException badFilter) {
+			return null;
+		}
+	}
+
+	private class Filter {
+		final RepositoryKey repo;
+
+		volatile CsBloomFilter bloom;
+
+		volatile boolean loaded;
+
+		private volatile long loadedAt;
+
+		private boolean loading;
+
+		/** Keys added since the last write began. */
+		private List<ObjectIndexKey> added = new ArrayList<ObjectIndexKey>();
+
+		/** Keys being written; added again if the write fails. */
+		private List<ObjectIndexKey> writing;
+
+		private boolean writeRequested;
+
+		private boolean writerRunning;
+
+		Filter(RepositoryKey repo) {
+			this.repo = repo;
+		}
+
+		boolean isFresh() {
+			return loaded
+					&& System.currentTimeMillis() - loadedAt < REFRESH;
+		}
+
+		synchronized boolean startLoad() {
+			if (isFresh() || loading)
+				return false;
+			loading = true;
+			return true;
+		}
+
+		synchronized void loadFailed() {
+			loading = false;
+		}
+
+		/**
+		 * Read the stored filter and combine it with this one.
+		 *
+		 * @return true if keys were added before the load and must be
+		 *         persisted.
+		 * @throws DhtException
+		 *             the stored filter cannot be read.
+		 */
+		boolean load() throws DhtException {
+			byte[] raw = repositoryTable().getObjectBloom(repo);
+			return loaded(raw != null ? parse(raw) : null);
+		}
+
+		private synchronized boolean loaded(CsBloomFilter stored) {
+			boolean first = !loaded;
+			if (stored == null) {
+				bloom = null;
+				added = new ArrayList<ObjectIndexKey>();
+			} else if (bloom != null && bloom.sameShape(stored))
+				bloom.merge(stored);
+			else
+				replace(stored);
+			loaded = true;
+			loading = false;
+			loadedAt = System.currentTimeMillis();
+			return first && bloom != null && !added.isEmpty();
+		}
+
+		synchronized void set(CsBloomFilter b) {
+			for (ObjectIndexKey key : added)
+				b.add(key);
+			bloom = b;
+			loaded = true;
+			loading = false;
+			loadedAt = System.currentTimeMillis();
+		}
+
+		synchronized boolean add(ObjectIndexKey key) {
+			if (loaded && bloom == null)
+				return false;
+			if (bloom != null)
+				bloom.add(key);
+			added.add(key);
+			return true;
+		}
+
+		/** @return true if the caller must start a writer. */
+		synchronized boolean requestWrite() {
+			if (bloom == null || added.isEmpty())
+				return false;
+			writeRequested = true;
+			if (writerRunning)
+				return false;
+			writerRunning = true;
+			return true;
+		}
+
+		/** @return true if the writer should write again. */
+		synchronized boolean startWrite() {
+			if (!writeRequested) {
+				writerRunning = false;
+				return false;
+			}
+			writeRequested = false;
+			writing = added;
+			added = new ArrayList<ObjectIndexKey>();
+			return true;
+		}
+
+		synchronized void replace(CsBloomFilter stored) {
+			if (writing != null) {
+				for (ObjectIndexKey key : writing)
+					stored.add(key);
+			}
+			for (ObjectIndexKey key : added)
+				stored.add(key);
+			bloom = stored;
+		}
+
+		synchronized void written() {
+			writing = null;
+		}
+
+		synchronized void writeFailed() {
+			writing.addAll(added);
+			added = writing;
+			writing = null;
+			writerRunning = false;
+		}
+	}
+}
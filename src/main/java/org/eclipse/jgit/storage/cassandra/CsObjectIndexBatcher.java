@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+import org.eclipse.jgit.storage.dht.ObjectInfo;
+import org.eclipse.jgit.storage.dht.spi.Context;
+
+/**
+ * Combines small ObjectIndex lookups from many callers into one multiget.
+ * <p>
+ * Lookups arriving within a short window are queued per {@code Context}. When
+ * the window closes, or enough keys have been queued, the union of the keys is
+ * read with a single call to {@link CsObjectIndexTable#lookup} and the result
+ * is split back out to each caller's callback.
+ * <p>
+ * Lookups still queued when the batcher is shut down, and lookups added after
+ * that, fail instead of waiting for a window that will never close.
+ */
+final class CsObjectIndexBatcher {
+	private final CsObjectIndexTable table;
+
+	private final long windowMicros;
+
+	private final int maxKeys;
+
+	private final ScheduledExecutorService timer;
+
+	private final Map<Context, Batch> open;
+
+	private boolean shutdown;
+
+	private final AtomicLong batches = new AtomicLong();
+
+	private final AtomicLong lookups = new AtomicLong();
+
+	CsObjectIndexBatcher(CsObjectIndexTable table, long windowMicros,
+			int maxKeys) {
+		this.table = table;
+		this.windowMicros = windowMicros;
+		this.maxKeys = maxKeys;
+		this.open = new EnumMap<Context, Batch>(Context.class);
+		this.timer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "JGit-Cassandra-IndexBatch");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * @param keys
+	 *            keys of a lookup.
+	 * @return true if the lookup is small enough to be combined with others.
+	 */
+	boolean accepts(Set<ObjectIndexKey> keys) {
+		return keys.size() < maxKeys;
+	}
+
+	/**
+	 * Queue a lookup for the next batch.
+	 *
+	 * @param options
+	 *            consistency of the lookup.
+	 * @param keys
+	 *            objects to find.
+	 * @param callback
+	 *            receives the locations of this lookup's keys.
+	 */
+	void add(final Context options, Set<ObjectIndexKey> keys,
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+		Batch full = null;
+		boolean closed = false;
+
+		synchronized (open) {
+			if (shutdown)
+				closed = true;
+			else {
+				Batch b = open.get(options);
+				if (b == null) {
+					b = new Batch(options);
+					open.put(options, b);
+					b.window = schedule(b);
+				}
+				b.add(keys, callback);
+
+				if (maxKeys <= b.keys.size() || b.window == null) {
+					open.remove(options);
+					if (b.window != null)
+						b.window.cancel(false);
+					full = b;
+				}
+			}
+		}
+
+		if (closed) {
+			callback.onFailure(shutdownError());
+			return;
+		}
+
+		lookups.incrementAndGet();
+		if (full != null)
+			full.run();
+	}
+
+	/** Close a batch once its window ends. Called holding {@code open}. */
+	private ScheduledFuture<?> schedule(final Batch b) {
+		try {
+			return timer.schedule(new Runnable() {
+				public void run() {
+					synchronized (open) {
+						// The batch may have been taken early because it
+						// filled up; a newer batch is left to its own window.
+						if (open.get(b.options) != b)
+							return;
+						open.remove(b.options);
+					}
+					b.run();
+				}
+			}, windowMicros, TimeUnit.MICROSECONDS);
+		} catch (RejectedExecutionException err) {
+			// The timer is only shut down after the shutdown flag is set,
+			// which add() checks first. If it still refuses, the caller
+			// runs the batch at once.
+			return null;
+		}
+	}
+
+	/** @return average number of callers served by one multiget. */
+	double getAverageBatchSize() {
+		long n = batches.get();
+		return n == 0 ? 0.0 : ((double) lookups.get()) / n;
+	}
+
+	void shutdown() {
+		List<Batch> pending;
+		synchronized (open) {
+			shutdown = true;
+			pending = new ArrayList<Batch>(open.values());
+			open.clear();
+		}
+		timer.shutdownNow();
+
+		DhtException err = shutdownError();
+		for (Batch b : pending)
+			b.onFailure(err);
+	}
+
+	private static DhtException shutdownError() {
+		return new DhtException("ObjectIndex batcher is shut down");
+	}
+
+	private class Batch implements
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> {
+		final Context options;
+
+		final Set<ObjectIndexKey> keys;
+
+		final List<List<ObjectIndexKey>> requests;
+
+		final List<AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>>> callbacks;
+
+		/** Task closing the window; cancelled if the batch fills first. */
+		ScheduledFuture<?> window;
+
+		Batch(Context options) {
+			this.options = options;
+			this.keys = new HashSet<ObjectIndexKey>();
+			this.requests = new ArrayList<List<ObjectIndexKey>>();
+			this.callbacks = new ArrayList<AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>>>();
+		}
+
+		void add(Set<ObjectIndexKey> want,
+				AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> cb) {
+			keys.addAll(want);
+			requests.add(new ArrayList<ObjectIndexKey>(want));
+			callbacks.add(cb);
+		}
+
+		void run() {
+			batches.incrementAndGet();
+			table.lookup(options, keys, this);
+		}
+
+		public void onSuccess(Map<ObjectIndexKey, Collection<ObjectInfo>> all) {
+			boolean shared = 1 < requests.size();
+			for (int i = 0; i < requests.size(); i++) {
+				Map<ObjectIndexKey, Collection<ObjectInfo>> r;
+				r = new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
+				for (ObjectIndexKey key : requests.get(i)) {
+					Collection<ObjectInfo> info = all.get(key);
+					if (info != null)
+						r.put(key, shared ? new ArrayList<ObjectInfo>(info) : info);
+				}
+
+				try {
+					callbacks.get(i).onSuccess(r);
+				} catch (Throwable err) {
+					callbacks.get(i).onFailure(new DhtException(err));
+				}
+			}
+		}
+
+		public void onFailure(DhtException error) {
+			for (AsyncCallback<?> cb : callbacks)
+				cb.onFailure(error);
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+import org.eclipse.jgit.storage.dht.ObjectInfo;
+
+/**
+ * Entry count bounded LRU cache of ObjectIndex rows.
+ * <p>
+ * Besides the locations of objects that were found, the cache remembers for a
+ * limited time that a row had no columns. Such negative entries are only used
+ * to answer {@code Context.FAST_MISSING_OK} lookups, whose callers confirm a
+ * missing object with a stronger read before relying on it. Found locations
+ * are also only kept for a limited time, so rows written by other processes
+ * are eventually seen.
+ * <p>
+ * A read takes the key's {@link #generation(ObjectIndexKey)} before querying
+ * the cluster and passes it to {@link #put(ObjectIndexKey, Collection, long)}.
+ * If the row was removed in between, because this process modified it, the
+ * result may predate the modification and is not cached.
+ */
+final class CsObjectIndexCache {
+	private static final int MAX_SEGMENTS = 16;
+
+	private static final int MIN_SEGMENT_SIZE = 1024;
+
+	/** Number of invalidation counters; keys sharing one share a count. */
+	private static final int GENERATIONS = 4096;
+
+	private final long limit;
+
+	private final long positiveTimeout;
+
+	private final long negativeTimeout;
+
+	private final AtomicLongArray generations;
+
+	private final Segment[] segments;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param limit
+	 *            maximum number of rows to remember.
+	 * @param positiveTimeout
+	 *            milliseconds the locations of an object are remembered for.
+	 * @param negativeTimeout
+	 *            milliseconds a missing row is remembered for.
+	 */
+	CsObjectIndexCache(int limit, long positiveTimeout, long negativeTimeout) {
+		int cnt = MAX_SEGMENTS;
+		while (1 < cnt && limit / cnt < MIN_SEGMENT_SIZE)
+			cnt >>>= 1;
+
+		this.limit = limit;
+		this.positiveTimeout = positiveTimeout;
+		this.negativeTimeout = negativeTimeout;
+		this.generations = new AtomicLongArray(GENERATIONS);
+		this.segments = new Segment[cnt];
+		for (int i = 0; i < cnt; i++)
+			segments[i] = new Segment(limit / cnt);
+	}
+
+	/**
+	 * Lookup an object in the cache.
+	 *
+	 * @param key
+	 *            the object to find.
+	 * @param allowMissing
+	 *            true if a remembered missing row may be returned.
+	 * @return a new list of the object's locations; an empty list if the row is
+	 *         known to be missing; null if the cache does not know.
+	 */
+	Collection<ObjectInfo> get(ObjectIndexKey key, boolean allowMissing) {
+		Collection<ObjectInfo> r = segment(key).get(key, allowMissing);
+		if (r != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return r;
+	}
+
+	/**
+	 * Get the invalidation generation of a key.
+	 *
+	 * @param key
+	 *            the object about to be read from the cluster.
+	 * @return value to pass to {@link #put(ObjectIndexKey, Collection, long)}.
+	 */
+	long generation(ObjectIndexKey key) {
+		return generations.get(stripe(key));
+	}
+
+	/**
+	 * Remember the locations of an object.
+	 *
+	 * @param key
+	 *            the object.
+	 * @param info
+	 *            locations read from the cluster; null or empty if the row had
+	 *            no columns.
+	 * @param generation
+	 *            {@link #generation(ObjectIndexKey)} taken before the read.
+	 *            If the key was removed since, nothing is cached.
+	 */
+	void put(ObjectIndexKey key, Collection<ObjectInfo> info, long generation) {
+		Entry e;
+		long now = System.currentTimeMillis();
+		if (info == null || info.isEmpty())
+			e = new Entry(Collections.<ObjectInfo> emptyList(), now
+					+ negativeTimeout);
+		else
+			e = new Entry(new ArrayList<ObjectInfo>(info), now
+					+ positiveTimeout);
+		segment(key).put(key, e, generation);
+	}
+
+	/**
+	 * Discard an object from the cache.
+	 * <p>
+	 * Reads of the object already in flight will not cache their result.
+	 *
+	 * @param key
+	 *            the object whose row was modified.
+	 */
+	void remove(ObjectIndexKey key) {
+		segment(key).remove(key);
+	}
+
+	CacheStats getStatistics() {
+		long cnt = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				cnt += s.map.size();
+			}
+		}
+		return new CacheStats(hits.get(), misses.get(), evictions.get(), cnt,
+				cnt, limit);
+	}
+
+	private Segment segment(ObjectIndexKey key) {
+		return segments[hash(key) & (segments.length - 1)];
+	}
+
+	private static int stripe(ObjectIndexKey key) {
+		return (hash(key) >>> 4) & (GENERATIONS - 1);
+	}
+
+	private static int hash(ObjectIndexKey key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h;
+	}
+
+	private static class Entry {
+		final Collection<ObjectInfo> info;
+
+		final long expires;
+
+		Entry(Collection<ObjectInfo> info, long expires) {
+			this.info = info;
+			this.expires = expires;
+		}
+	}
+
+	private class Segment {
+		final int limit;
+
+		final LinkedHashMap<ObjectIndexKey, Entry> map;
+
+		Segment(int limit) {
+			this.limit = Math.max(1, limit);
+			this.map = new LinkedHashMap<ObjectIndexKey, Entry>(64, 0.75f,
+					true);
+		}
+
+		synchronized Collection<ObjectInfo> get(ObjectIndexKey key,
+				boolean allowMissing) {
+			Entry e = map.get(key);
+			if (e == null)
+				return null;
+
+			if (e.expires < System.currentTimeMillis()) {
+				map.remove(key);
+				return null;
+			}
+			if (e.info.isEmpty()) {
+				if (!allowMissing)
+					return null;
+				return new ArrayList<ObjectInfo>(0);
+			}
+			return new ArrayList<ObjectInfo>(e.info);
+		}
+
+		synchronized void put(ObjectIndexKey key, Entry e, long generation) {
+			// remove() bumps the generation while holding this lock, so the
+			// check and the insertion cannot straddle an invalidation.
+			if (generations.get(stripe(key)) != generation)
+				return;
+			map.put(key, e);
+
+			Iterator<Entry> i = map.values().iterator();
+			while (limit < map.size() && i.hasNext()) {
+				i.next();
+				i.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized void remove(ObjectIndexKey key) {
+			generations.incrementAndGet(stripe(key));
+			map.remove(key);
+		}
+	}
+}
@@ -44,25 +44,39 @@
 package org.eclipse.jgit.storage.cassandra;
 
 import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.OrderedRows;
 import me.prettyprint.hector.api.beans.Row;
 import me.prettyprint.hector.api.beans.Rows;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.query.MultigetSliceQuery;
+import me.prettyprint.hector.api.query.RangeSlicesQuery;
+import me.prettyprint.hector.api.query.SliceQuery;
 
+import org.eclipse.jgit.storage.cassandra.CsSingleFlight.Flight;
 import org.eclipse.jgit.storage.dht.AsyncCallback;
 import org.eclipse.jgit.storage.dht.ChunkKey;
 import org.eclipse.jgit.storage.dht.DhtException;
 import org.eclipse.jgit.storage.dht.ObjectIndexKey;
 import org.eclipse.jgit.storage.dht.ObjectInfo;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.storage.dht.StreamingCallback;
 import org.eclipse.jgit.storage.dht.spi.Context;
 import org.eclipse.jgit.storage.dht.spi.ObjectIndexTable;
 import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
@@ -73,42 +87,251 @@ final class CsObjectIndexTable implements ObjectIndexTable {
 
 	private static final String CF = "ObjectIndex";
 
+	private static final int SCAN_PAGE_SIZE = 1000;
+
+	/** Size assumed for a row when splitting reads into sub-batches. */
+	private static final int EXPECTED_ROW_SIZE = 256;
+
 	private final CassandraDatabase db;
 
 	private final ColumnMatcher colInfo;
 
+	private final byte[] infoStart;
+
+	private final byte[] infoEnd;
+
+	private final int batchSize;
+
+	private final CsSingleFlight<ObjectIndexKey, Collection<ObjectInfo>> inflight;
+
+	private final CsObjectIndexBatcher batcher;
+
+	private final int columnLimit;
+
+	private final int maxInfos;
+
+	private final AtomicLong rowCount = new AtomicLong();
+
+	private final AtomicLong columnCount = new AtomicLong();
+
+	private final AtomicLong maxWidth = new AtomicLong();
+
+	private final AtomicLong pagedCount = new AtomicLong();
+
+	private final AtomicLong truncatedCount = new AtomicLong();
+
+	/** Column name of the chunk most recently added or removed. */
+	private volatile InfoName lastInfo;
+
 	CsObjectIndexTable(CassandraDatabase db) {
 		this.db = db;
+		this.batchSize = db.getReadBatchSize(EXPECTED_ROW_SIZE);
+		this.inflight = new CsSingleFlight<ObjectIndexKey, Collection<ObjectInfo>>();
+
+		if (0 < db.getObjectIndexBatchWindow())
+			this.batcher = new CsObjectIndexBatcher(this,
+					db.getObjectIndexBatchWindow(), batchSize);
+		else
+			this.batcher = null;
 		this.colInfo = new ColumnMatcher("info:");
+		this.infoStart = colInfo.name();
+		this.infoEnd = colInfo.append(new byte[] { 'Z' });
+
+		int limit = db.getObjectIndexColumnLimit();
+		this.columnLimit = 0 < limit ? limit : Integer.MAX_VALUE;
+		this.maxInfos = db.getObjectIndexMaxInfos();
 	}
 
 	public void get(
 			Context options,
 			Set<ObjectIndexKey> objects,
-			final AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
-		final MultigetSliceQuery<byte[], byte[], byte[]> q;
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+		if (batcher != null && batcher.accepts(objects)
+				&& !(callback instanceof StreamingCallback))
+			batcher.add(options, objects, callback);
+		else
+			lookup(options, objects, callback);
+	}
 
-		q = createMultigetSliceQuery(db.getKeyspace(options), S, S, S);
-		q.setColumnFamily(CF);
-		q.setKeys(CsUtil.asByteArraysArray(objects));
-		q.setRange( //
-				colInfo.name(), //
-				colInfo.append(new byte[] { 'Z' }), //
-				false, Integer.MAX_VALUE);
-
-		db.submit(new Runnable() {
-			public void run() {
-				try {
-					callback.onSuccess(findChunks(q.execute().get()));
-				} catch (Throwable err) {
-					callback.onFailure(new DhtException(err));
+	void lookup(
+			final Context options,
+			Set<ObjectIndexKey> objects,
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+		final CsObjectIndexCache cache = db.getObjectIndexCache();
+		final CsObjectBloom bloom;
+		final Keyspace keyspace = db.getKeyspace(options);
+		final Set<ObjectIndexKey> passed;
+		Map<ObjectIndexKey, Collection<ObjectInfo>> found;
+		Set<ObjectIndexKey> need = objects;
+
+		if (options == Context.FAST_MISSING_OK)
+			bloom = db.getObjectBloom();
+		else
+			bloom = null;
+
+		found = new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
+		passed = bloom != null ? new HashSet<ObjectIndexKey>() : null;
+		if (cache != null || bloom != null) {
+			boolean allowMissing = options == Context.FAST_MISSING_OK;
+			need = new HashSet<ObjectIndexKey>();
+			for (ObjectIndexKey key : objects) {
+				CsBloomFilter f = null;
+				if (bloom != null) {
+					f = bloom.peek(key.getRepositoryId());
+					if (f != null && !f.mightContain(key)) {
+						bloom.rejected();
+						continue;
+					}
 				}
+
+				Collection<ObjectInfo> info = null;
+				if (cache != null)
+					info = cache.get(key, allowMissing);
+				if (info == null) {
+					need.add(key);
+					if (f != null)
+						passed.add(key);
+				} else if (!info.isEmpty())
+					found.put(key, info);
 			}
-		});
+		}
+
+		new CsMultiget<ObjectIndexKey, Map<ObjectIndexKey, Collection<ObjectInfo>>>(
+				db.getReadExecutor(), callback) {
+			@Override
+			protected Map<ObjectIndexKey, Collection<ObjectInfo>> newResult() {
+				return new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
+			}
+
+			@Override
+			protected Map<ObjectIndexKey, Collection<ObjectInfo>> read(
+					List<ObjectIndexKey> batch) throws Exception {
+				List<Flight<ObjectIndexKey, Collection<ObjectInfo>>> lead;
+				List<Flight<ObjectIndexKey, Collection<ObjectInfo>>> follow;
+				List<ObjectIndexKey> leadKeys;
+				List<ObjectIndexKey> followKeys;
+
+				lead = new ArrayList<Flight<ObjectIndexKey, Collection<ObjectInfo>>>();
+				follow = new ArrayList<Flight<ObjectIndexKey, Collection<ObjectInfo>>>();
+				leadKeys = new ArrayList<ObjectIndexKey>(batch.size());
+				followKeys = new ArrayList<ObjectIndexKey>();
+				for (ObjectIndexKey key : batch) {
+					Flight<ObjectIndexKey, Collection<ObjectInfo>> f;
+					f = inflight.begin(options, key);
+					if (f.isLeader()) {
+						lead.add(f);
+						leadKeys.add(key);
+					} else {
+						follow.add(f);
+						followKeys.add(key);
+					}
+				}
+
+				Map<ObjectIndexKey, Collection<ObjectInfo>> r;
+				if (!leadKeys.isEmpty()) {
+					long[] generations = null;
+					if (cache != null) {
+						generations = new long[leadKeys.size()];
+						for (int i = 0; i < generations.length; i++)
+							generations[i] = cache.generation(leadKeys.get(i));
+					}
+
+					try {
+						r = readRows(keyspace, leadKeys);
+						for (int i = 0; i < leadKeys.size(); i++) {
+							Collection<ObjectInfo> info = r.get(leadKeys.get(i));
+							if (info != null)
+								info = new ArrayList<ObjectInfo>(info);
+							lead.get(i).complete(info);
+						}
+					} catch (Exception err) {
+						DhtException e = new DhtException(err);
+						for (Flight<ObjectIndexKey, Collection<ObjectInfo>> f : lead)
+							f.fail(e);
+						throw e;
+					} finally {
+						for (Flight<ObjectIndexKey, Collection<ObjectInfo>> f : lead)
+							f.abandon();
+					}
+
+					if (cache != null) {
+						for (int i = 0; i < leadKeys.size(); i++) {
+							ObjectIndexKey key = leadKeys.get(i);
+							cache.put(key, r.get(key), generations[i]);
+						}
+					}
+				} else
+					r = new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
+
+				for (int i = 0; i < follow.size(); i++) {
+					Collection<ObjectInfo> info = follow.get(i).get();
+					if (info != null)
+						r.put(followKeys.get(i), new ArrayList<ObjectInfo>(info));
+				}
+
+				if (passed != null && !passed.isEmpty()) {
+					int n = 0;
+					int missing = 0;
+					for (ObjectIndexKey key : batch) {
+						if (passed.contains(key)) {
+							n++;
+							if (!r.containsKey(key))
+								missing++;
+						}
+					}
+					if (0 < n)
+						bloom.passed(n, missing);
+				}
+				return r;
+			}
+
+			@Override
+			protected void merge(
+					Map<ObjectIndexKey, Collection<ObjectInfo>> into,
+					Map<ObjectIndexKey, Collection<ObjectInfo>> part) {
+				into.putAll(part);
+			}
+		}.start(need, found.isEmpty() ? null : found, batchSize,
+				db.getReadConcurrency());
+	}
+
+	private Map<ObjectIndexKey, Collection<ObjectInfo>> readRows(
+			final Keyspace keyspace, final List<ObjectIndexKey> keys)
+			throws Exception {
+		CsHedge hedge = db.getHedge();
+		if (hedge == null)
+			return query(keyspace, keys);
+		return hedge.read(CF,
+				new Callable<Map<ObjectIndexKey, Collection<ObjectInfo>>>() {
+					public Map<ObjectIndexKey, Collection<ObjectInfo>> call() {
+						return query(keyspace, keys);
+					}
+				});
+	}
+
+	private Map<ObjectIndexKey, Collection<ObjectInfo>> query(
+			Keyspace keyspace, List<ObjectIndexKey> keys) {
+		MultigetSliceQuery<byte[], byte[], byte[]> q;
+
+		q = createMultigetSliceQuery(keyspace, S, S, S);
+		q.setColumnFamily(CF);
+		q.setKeys(CsUtil.asByteArraysArray(keys));
+		q.setRange( //
+				infoStart, //
+				infoEnd, //
+				false, firstSlice());
+		return findChunks(keyspace, db.execute(q).get());
+	}
+
+	private int firstSlice() {
+		// One column past the limit shows whether the row is cut off.
+		if (0 < maxInfos && maxInfos < columnLimit)
+			return maxInfos + 1;
+		return columnLimit;
 	}
 
 	private Map<ObjectIndexKey, Collection<ObjectInfo>> findChunks(
-			Rows<byte[], byte[], byte[]> rows) {
+			Keyspace keyspace, Rows<byte[], byte[], byte[]> rows) {
 		Map<ObjectIndexKey, Collection<ObjectInfo>> map;
 
 		map = new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
@@ -118,37 +341,220 @@ final class CsObjectIndexTable implements ObjectIndexTable {
 				continue;
 
 			ObjectIndexKey key = ObjectIndexKey.fromBytes(r.getKey());
-			Collection<ObjectInfo> list = map.get(key);
-			if (list == null) {
-				list = new ArrayList<ObjectInfo>(cols.size());
-				map.put(key, list);
-			}
+			List<ObjectInfo> list = new ArrayList<ObjectInfo>(cols.size());
+			int width = cols.size();
+			add(list, cols, 0);
 
-			for (HColumn<byte[], byte[]> cell : cols) {
-				byte[] name = cell.getName();
-				if (!colInfo.sameFamily(name))
-					continue;
-				ChunkKey k = ChunkKey.fromBytes(colInfo.suffix(name));
-				long time = cell.getClock();
-				list.add(ObjectInfo.fromBytes(k, cell.getValue(), time));
+			if (width == firstSlice() && !isFull(list)) {
+				pagedCount.incrementAndGet();
+				width += readPages(keyspace, r.getKey(), cols, list);
+			}
+			if (isFull(list)) {
+				// Only a row that returned locations past the limit counts
+				// as cut off; one exactly maxInfos wide is complete.
+				list.subList(maxInfos, list.size()).clear();
+				truncatedCount.incrementAndGet();
 			}
+
+			recordWidth(width);
+			map.put(key, list);
 		}
 		return map;
 	}
 
+	/**
+	 * Read the rest of a row wider than one column slice.
+	 *
+	 * @return number of columns read.
+	 */
+	private int readPages(Keyspace keyspace, byte[] rowKey,
+			List<HColumn<byte[], byte[]>> first, List<ObjectInfo> list) {
+		byte[] last = first.get(first.size() - 1).getName();
+		int width = 0;
+
+		for (;;) {
+			// Read at most one location past the limit, enough to tell
+			// whether the row is cut off.
+			int n = sliceCount();
+			if (0 < maxInfos)
+				n = (int) Math.min(n, (long) maxInfos - list.size() + 2);
+
+			// The slice starts at the last column already read, so it comes
+			// back first and is skipped.
+			SliceQuery<byte[], byte[], byte[]> q;
+			q = createSliceQuery(keyspace, S, S, S);
+			q.setColumnFamily(CF);
+			q.setKey(rowKey);
+			q.setRange(last, infoEnd, false, n);
+
+			List<HColumn<byte[], byte[]>> cols;
+			cols = db.execute(q).get().getColumns();
+			width += Math.max(0, cols.size() - 1);
+			add(list, cols, 1);
+
+			if (cols.size() < n || isFull(list))
+				return width;
+			last = cols.get(cols.size() - 1).getName();
+		}
+	}
+
+	private int sliceCount() {
+		if (columnLimit == Integer.MAX_VALUE)
+			return columnLimit;
+		return columnLimit + 1;
+	}
+
+	private void add(List<ObjectInfo> list, List<HColumn<byte[], byte[]>> cols,
+			int skip) {
+		for (int i = skip; i < cols.size(); i++) {
+			HColumn<byte[], byte[]> cell = cols.get(i);
+			byte[] name = cell.getName();
+			if (!colInfo.sameFamily(name))
+				continue;
+			ChunkKey k = ChunkKey.fromBytes(colInfo.suffix(name));
+			long time = cell.getClock();
+			list.add(ObjectInfo.fromBytes(k, cell.getValue(), time));
+		}
+	}
+
+	/** @return true once more locations were read than a lookup returns. */
+	private boolean isFull(List<ObjectInfo> list) {
+		return 0 < maxInfos && maxInfos < list.size();
+	}
+
+	private void recordWidth(int width) {
+		rowCount.incrementAndGet();
+		columnCount.addAndGet(width);
+		for (;;) {
+			long max = maxWidth.get();
+			if (width <= max || maxWidth.compareAndSet(max, width))
+				return;
+		}
+	}
+
 	public void add(ObjectIndexKey objId, ObjectInfo link, WriteBuffer buffer)
 			throws DhtException {
 		CsBuffer buf = (CsBuffer) buffer;
 		ChunkKey key = link.getChunkKey();
+		buf.modified(objId);
 		buf.put(CF, //
 				objId.asBytes(), //
-				colInfo.append(key.asBytes()), //
+				infoName(key), //
 				link.asBytes());
+
+		CsObjectBloom bloom = db.getObjectBloom();
+		if (bloom != null && bloom.add(objId))
+			buf.modifiedFilter(objId.getRepositoryId());
 	}
 
 	public void remove(ObjectIndexKey objId, ChunkKey chunk, WriteBuffer buffer)
 			throws DhtException {
 		CsBuffer buf = (CsBuffer) buffer;
-		buf.delete(CF, objId.asBytes(), colInfo.append(chunk.asBytes()));
+		buf.modified(objId);
+		buf.delete(CF, objId.asBytes(), infoName(chunk));
+	}
+
+	/**
+	 * Get the column name of a chunk's location.
+	 * <p>
+	 * Objects are added and removed one chunk at a time, so the name encoded
+	 * for the previous call is usually the one needed again.
+	 *
+	 * @param chunk
+	 *            the chunk.
+	 * @return {@code info:} followed by the chunk key. Shared; do not modify.
+	 */
+	private byte[] infoName(ChunkKey chunk) {
+		InfoName n = lastInfo;
+		if (n == null || !n.chunk.equals(chunk)) {
+			n = new InfoName(chunk, colInfo.append(chunk.asBytes()));
+			lastInfo = n;
+		}
+		return n.name;
+	}
+
+	/** @return average number of lookups combined into one batch. */
+	double getAverageBatchSize() {
+		return batcher != null ? batcher.getAverageBatchSize() : 0.0;
+	}
+
+	void shutdown() {
+		if (batcher != null)
+			batcher.shutdown();
+	}
+
+	/** @return widths of the ObjectIndex rows read so far. */
+	ObjectIndexRowStats getRowStats() {
+		return new ObjectIndexRowStats(rowCount.get(), columnCount.get(),
+				maxWidth.get(), pagedCount.get(), truncatedCount.get());
+	}
+
+	/** @return number of lookups served by another thread's query. */
+	long getCoalescedCount() {
+		return inflight.getCoalescedCount();
+	}
+
+	/**
+	 * Scan the entire ObjectIndex for objects of one repository.
+	 *
+	 * @param repo
+	 *            the repository.
+	 * @param bloom
+	 *            if not null, every object found is added to this filter.
+	 * @return number of objects found.
+	 * @throws DhtException
+	 *             the scan failed.
+	 */
+	long scan(RepositoryKey repo, CsBloomFilter bloom) throws DhtException {
+		try {
+			RangeSlicesQuery<byte[], byte[], byte[]> q;
+
+			q = HFactory.createRangeSlicesQuery(
+					db.getKeyspace(Context.READ_REPAIR), S, S, S);
+			q.setColumnFamily(CF);
+			q.setRange( //
+					infoStart, //
+					infoEnd, //
+					false, 1);
+			q.setRowCount(SCAN_PAGE_SIZE);
+
+			long cnt = 0;
+			byte[] start = {};
+			for (;;) {
+				q.setKeys(start, new byte[] {});
+				OrderedRows<byte[], byte[], byte[]> rows = db.execute(q).get();
+				for (Row<byte[], byte[], byte[]> r : rows) {
+					if (Arrays.equals(start, r.getKey()))
+						continue;
+					if (r.getColumnSlice().getColumns().isEmpty())
+						continue;
+
+					ObjectIndexKey key = ObjectIndexKey.fromBytes(r.getKey());
+					if (key.getRepositoryId() != repo.asInt())
+						continue;
+
+					if (bloom != null)
+						bloom.add(key);
+					cnt++;
+				}
+
+				if (rows.getCount() < SCAN_PAGE_SIZE)
+					return cnt;
+				start = rows.peekLast().getKey();
+			}
+		} catch (HectorException err) {
+			throw new DhtException(err);
+		}
+	}
+
+	private static class InfoName {
+		final ChunkKey chunk;
+
+		final byte[] name;
+
+		InfoName(ChunkKey chunk, byte[] name) {
+			this.chunk = chunk;
+			this.name = name;
+		}
 	}
 }
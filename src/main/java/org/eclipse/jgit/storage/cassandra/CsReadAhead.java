@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.ChunkMeta;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.PackChunk;
+import org.eclipse.jgit.storage.dht.spi.Context;
+
+/**
+ * Loads the chunks a chunk's {@link ChunkMeta} hints will be needed next.
+ * <p>
+ * When a whole chunk is read from the cluster, the chunks named by its
+ * fragment list and its commit and tree prefetch hints are read in the
+ * background into the chunk cache. Every chunk being read ahead reserves the
+ * expected size of a chunk from a byte budget; hints that do not fit are
+ * dropped, so read-ahead never holds more than the budget in flight. Only
+ * the hints of chunks a reader asked for are followed, not those of chunks
+ * read ahead, so a reader prefetches at most one step ahead of its own reads
+ * and cannot pull a whole repository into the cache. Reads ahead run on the
+ * background pool, so they do not compete with interactive reads for
+ * threads; a read ahead still waiting for a thread after {@code MAX_WAIT}
+ * milliseconds is dropped, as its reader has likely moved on or finished.
+ */
+final class CsReadAhead {
+	/** Milliseconds a read ahead may wait for a thread before it is dropped. */
+	private static final long MAX_WAIT = 1000;
+
+	private final CsChunkTable table;
+
+	private final CsChunkCache cache;
+
+	private final ExecutorService executor;
+
+	private final long budget;
+
+	private final int chunkSize;
+
+	private final ConcurrentMap<ChunkKey, Boolean> pending;
+
+	private final AtomicLong issued = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private long reserved;
+
+	private volatile boolean cancelled;
+
+	CsReadAhead(CsChunkTable table, CsChunkCache cache,
+			ExecutorService executor, long budget, int chunkSize) {
+		this.table = table;
+		this.cache = cache;
+		this.executor = executor;
+		this.budget = budget;
+		this.chunkSize = chunkSize;
+		this.pending = new ConcurrentHashMap<ChunkKey, Boolean>();
+	}
+
+	/**
+	 * Start reading the chunks hinted by chunks just loaded.
+	 *
+	 * @param options
+	 *            consistency of the read that loaded the chunks.
+	 * @param loaded
+	 *            whole chunks read from the cluster.
+	 */
+	void loaded(final Context options,
+			Collection<PackChunk.Members> loaded) {
+		if (cancelled)
+			return;
+
+		Set<ChunkKey> want = new LinkedHashSet<ChunkKey>();
+		for (PackChunk.Members m : loaded) {
+			ChunkMeta meta = m.getMeta();
+			if (meta != null) {
+				addAll(want, meta.getFragments());
+				addHint(want, meta.getCommitPrefetch());
+				addHint(want, meta.getTreePrefetch());
+			}
+		}
+		for (PackChunk.Members m : loaded)
+			want.remove(m.getChunkKey());
+
+		final Set<ChunkKey> keys = new LinkedHashSet<ChunkKey>();
+		for (ChunkKey key : want) {
+			if (cache.contains(key)
+					|| pending.putIfAbsent(key, Boolean.TRUE) != null)
+				continue;
+			if (!reserve()) {
+				pending.remove(key);
+				dropped.incrementAndGet();
+				continue;
+			}
+			keys.add(key);
+		}
+		if (keys.isEmpty())
+			return;
+
+		final long queued = System.currentTimeMillis();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					if (cancelled
+							|| MAX_WAIT < System.currentTimeMillis() - queued) {
+						dropped.addAndGet(keys.size());
+						done(keys);
+						return;
+					}
+					read(options, keys);
+				}
+			});
+		} catch (RejectedExecutionException shutdown) {
+			done(keys);
+		}
+	}
+
+	private void read(Context options, final Set<ChunkKey> keys) {
+		issued.addAndGet(keys.size());
+		table.get(options, keys, executor, false,
+				new AsyncCallback<Collection<PackChunk.Members>>() {
+					public void onSuccess(Collection<PackChunk.Members> r) {
+						done(keys);
+					}
+
+					public void onFailure(DhtException error) {
+						// Read-ahead is only a hint; the reader will retry.
+						done(keys);
+					}
+				});
+	}
+
+	/**
+	 * Stop starting new reads. Reads still waiting for a thread are dropped;
+	 * reads already sent complete normally.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	/** @return number of chunks read ahead. */
+	long getIssuedCount() {
+		return issued.get();
+	}
+
+	/**
+	 * @return number of hinted chunks skipped because the budget was full or
+	 *         they waited too long for a thread.
+	 */
+	long getDroppedCount() {
+		return dropped.get();
+	}
+
+	private void addHint(Set<ChunkKey> want, ChunkMeta.PrefetchHint hint) {
+		if (hint != null) {
+			addAll(want, hint.getEdge());
+			addAll(want, hint.getSequential());
+		}
+	}
+
+	private static void addAll(Set<ChunkKey> want, List<ChunkKey> keys) {
+		if (keys != null)
+			want.addAll(keys);
+	}
+
+	private synchronized boolean reserve() {
+		if (budget < reserved + chunkSize)
+			return false;
+		reserved += chunkSize;
+		return true;
+	}
+
+	private void done(Set<ChunkKey> keys) {
+		synchronized (this) {
+			reserved -= (long) chunkSize * keys.size();
+		}
+		for (ChunkKey key : keys)
+			pending.remove(key);
+	}
+}
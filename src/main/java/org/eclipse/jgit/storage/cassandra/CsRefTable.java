@@ -56,6 +56,7 @@ import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.query.SliceQuery;
 
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.cassandra.CsSingleFlight.Flight;
 import org.eclipse.jgit.storage.dht.DhtException;
 import org.eclipse.jgit.storage.dht.RefData;
 import org.eclipse.jgit.storage.dht.RefKey;
@@ -69,58 +70,88 @@ final class CsRefTable implements RefTable {
 
 	private static final String CF = "Ref";
 
+	private static final byte[] FIRST_REF = { 0 };
+
+	private static final byte[] END = {};
+
 	private final CassandraDatabase db;
 
+	private final CsSingleFlight<RepositoryKey, Map<RefKey, RefData>> inflight;
+
 	CsRefTable(CassandraDatabase db) {
 		this.db = db;
+		this.inflight = new CsSingleFlight<RepositoryKey, Map<RefKey, RefData>>();
 	}
 
 	public Map<RefKey, RefData> getAll(Context options, RepositoryKey repository)
 			throws DhtException {
+		Flight<RepositoryKey, Map<RefKey, RefData>> f;
+
+		f = inflight.begin(options, repository);
+		if (!f.isLeader())
+			return new HashMap<RefKey, RefData>(f.get());
+
 		try {
 			SliceQuery<byte[], byte[], byte[]> q;
 
 			q = HFactory.createSliceQuery(db.getKeyspace(options), S, S, S);
 			q.setColumnFamily(CF);
 			q.setKey(repository.asBytes());
-			q.setRange(new byte[] { 0 }, new byte[] {}, false,
-					Integer.MAX_VALUE);
+			q.setRange(FIRST_REF, END, false, Integer.MAX_VALUE);
 
 			Map<RefKey, RefData> r = new HashMap<RefKey, RefData>();
-			for (HColumn<byte[], byte[]> c : q.execute().get().getColumns()) {
+			for (HColumn<byte[], byte[]> c : db.execute(q).get().getColumns()) {
 				r.put(
 					RefKey.create(repository, RawParseUtils.decode(c.getName())),
 					RefData.fromBytes(c.getValue()));
 			}
+			f.complete(new HashMap<RefKey, RefData>(r));
 			return r;
 
 		} catch (HectorException err) {
-			throw new DhtException(err);
+			DhtException e = new DhtException(err);
+			f.fail(e);
+			throw e;
+		} finally {
+			f.abandon();
 		}
 	}
 
+	/** @return number of reads served by another thread's query. */
+	long getCoalescedCount() {
+		return inflight.getCoalescedCount();
+	}
+
 	public boolean compareAndPut(RefKey refKey, RefData oldData, RefData newData)
 			throws DhtException, TimeoutException {
 		// TODO Use ZooKeeper for a proper transaction on refKey;
+		inflight.forget(refKey.getRepositoryKey());
 		try {
-			addInsertion(db.createMutator(), CF, //
+			db.execute(addInsertion(db.createMutator(), CF, //
 					refKey.getRepositoryKey().asBytes(), //
 					Constants.encode(refKey.getName()), //
-					newData.asBytes()).execute();
+					newData.asBytes()));
 			return true;
 		} catch (HectorException err) {
 			throw new DhtException(err);
+		} finally {
+			inflight.forget(refKey.getRepositoryKey());
 		}
 	}
 
 	public boolean compareAndRemove(RefKey refKey, RefData oldData)
 			throws DhtException, TimeoutException {
 		// TODO Use ZooKeeper for a proper transaction on refKey;
-		db.createMutator().addDeletion( //
-				refKey.getRepositoryKey().asBytes(), //
-				CF, //
-				Constants.encode(refKey.getName()), //
-				S).execute();
-		return true;
+		inflight.forget(refKey.getRepositoryKey());
+		try {
+			db.execute(db.createMutator().addDeletion( //
+					refKey.getRepositoryKey().asBytes(), //
+					CF, //
+					Constants.encode(refKey.getName()), //
+					S));
+			return true;
+		} finally {
+			inflight.forget(refKey.getRepositoryKey());
+		}
 	}
 }
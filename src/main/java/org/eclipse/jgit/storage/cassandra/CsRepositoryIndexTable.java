@@ -82,20 +82,19 @@ class CsRepositoryIndexTable implements RepositoryIndexTable {
 	public RepositoryKey get(RepositoryName name) throws DhtException,
 			TimeoutException {
 		try {
-			HColumn<byte[], byte[]> r = createColumnQuery(
+			HColumn<byte[], byte[]> r = db.execute(createColumnQuery(
 					db.getKeyspace(Context.LOCAL), S, S, S)
 					.setColumnFamily(CF_REPOSITORY_INDEX) //
 					.setKey(name.asBytes()) //
-					.setName(colId.name()) //
-					.execute().get();
+					.setName(colId.name())).get();
 			if (r != null)
 				return RepositoryKey.fromBytes(r.getValue());
 
-			r = createColumnQuery(db.getKeyspace(Context.READ_REPAIR), S, S, S)
+			r = db.execute(createColumnQuery(
+					db.getKeyspace(Context.READ_REPAIR), S, S, S)
 					.setColumnFamily(CF_REPOSITORY_INDEX) //
 					.setKey(name.asBytes()) //
-					.setName(colId.name()) //
-					.execute().get();
+					.setName(colId.name())).get();
 			if (r != null)
 				return RepositoryKey.fromBytes(r.getValue());
 			return null;
@@ -110,5 +109,9 @@ class CsRepositoryIndexTable implements RepositoryIndexTable {
 		db.put(CF_REPOSITORY_INDEX, name.asBytes(), colId.name(), key.asBytes());
 
 		db.put(CF_REPOSITORY, key.asBytes(), colName.append(name.asBytes()), TRUE);
+
+		CsObjectBloom bloom = db.getObjectBloom();
+		if (bloom != null)
+			bloom.create(key);
 	}
 }
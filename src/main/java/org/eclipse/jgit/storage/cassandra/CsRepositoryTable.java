@@ -52,6 +52,7 @@ import java.util.concurrent.TimeoutException;
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
 import me.prettyprint.hector.api.beans.ColumnSlice;
 import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.factory.HFactory;
 
 import org.eclipse.jgit.storage.dht.CachedPackInfo;
@@ -76,10 +77,19 @@ class CsRepositoryTable implements RepositoryTable {
 
 	private final ColumnMatcher colCachedPack;
 
+	private final ColumnMatcher colObjectBloom;
+
+	private final byte[] cachedPackStart;
+
+	private final byte[] cachedPackEnd;
+
 	CsRepositoryTable(CassandraDatabase db) {
 		this.db = db;
 		this.colChunkInfo = new ColumnMatcher("chunkInfo:");
 		this.colCachedPack = new ColumnMatcher("cachedPack:");
+		this.colObjectBloom = new ColumnMatcher("objectBloom");
+		this.cachedPackStart = colCachedPack.append(new byte[] {});
+		this.cachedPackEnd = colCachedPack.append(new byte[] { '~' });
 	}
 
 	public RepositoryKey nextKey() throws DhtException {
@@ -91,13 +101,12 @@ class CsRepositoryTable implements RepositoryTable {
 
 	public Collection<CachedPackInfo> getCachedPacks(RepositoryKey repo)
 			throws DhtException, TimeoutException {
-		ColumnSlice<byte[], byte[]> slice = HFactory
+		ColumnSlice<byte[], byte[]> slice = db.execute(HFactory
 				.createSliceQuery(db.getKeyspace(Context.LOCAL), S, S, S)
 				.setColumnFamily(CF)
 				.setKey(repo.asBytes())
-				.setRange(colCachedPack.append(new byte[] {}),
-						colCachedPack.append(new byte[] { '~' }), false,
-						Integer.MAX_VALUE).execute().get();
+				.setRange(cachedPackStart, cachedPackEnd, false,
+						Integer.MAX_VALUE)).get();
 		if (slice == null || slice.getColumns().isEmpty())
 			return Collections.emptyList();
 
@@ -141,4 +150,21 @@ class CsRepositoryTable implements RepositoryTable {
 		CsBuffer buf = (CsBuffer) buffer;
 		buf.delete(CF, repo.asBytes(), colChunkInfo.append(chunk.asBytes()));
 	}
+
+	byte[] getObjectBloom(RepositoryKey repo) throws DhtException {
+		try {
+			HColumn<byte[], byte[]> r = db.execute(HFactory
+					.createColumnQuery(db.getKeyspace(Context.LOCAL), S, S, S)
+					.setColumnFamily(CF) //
+					.setKey(repo.asBytes()) //
+					.setName(colObjectBloom.name())).get();
+			return r != null ? r.getValue() : null;
+		} catch (HectorException err) {
+			throw new DhtException(err);
+		}
+	}
+
+	void putObjectBloom(RepositoryKey repo, byte[] bloom) throws DhtException {
+		db.put(CF, repo.asBytes(), colObjectBloom.name(), bloom);
+	}
 }
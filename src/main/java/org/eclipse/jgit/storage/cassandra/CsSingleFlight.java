@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.jgit.storage.dht.DhtException;
+
+/**
+ * Table of reads currently in flight, to coalesce identical reads.
+ * <p>
+ * The first thread to {@link #begin(Object, Object)} a read of a key becomes
+ * the leader of that flight and must complete it. Threads that begin the same
+ * read before the leader is done receive the same flight and wait for the
+ * leader's value instead of issuing their own query. Leaders call
+ * {@link Flight#abandon()} in a {@code finally} block, so followers are
+ * released even if the leader fails in an unexpected way.
+ * <p>
+ * A read only joins a flight begun since the key was last
+ * {@link #forget(Object) forgotten}. Writers forget the key before issuing
+ * the write and again once it is done, so no read can be handed a value
+ * from a query that started before the latest write.
+ *
+ * @param <K>
+ *            type of the row key.
+ * @param <V>
+ *            type of the value read for a key.
+ */
+final class CsSingleFlight<K, V> {
+	/** Number of write counters; keys sharing one share a count. */
+	private static final int GENERATIONS = 1024;
+
+	private final ConcurrentMap<Key<K>, Flight<K, V>> inflight;
+
+	private final AtomicLongArray generations;
+
+	private final AtomicLong coalesced;
+
+	CsSingleFlight() {
+		inflight = new ConcurrentHashMap<Key<K>, Flight<K, V>>();
+		generations = new AtomicLongArray(GENERATIONS);
+		coalesced = new AtomicLong();
+	}
+
+	/**
+	 * Begin reading a key.
+	 *
+	 * @param scope
+	 *            options that change the result of the read, such as the
+	 *            consistency {@code Context}. Only reads with equal scope are
+	 *            coalesced.
+	 * @param key
+	 *            the key to read.
+	 * @return the flight for the key. If {@link Flight#isLeader()} the caller
+	 *         must read the key and complete or fail the flight.
+	 */
+	Flight<K, V> begin(Object scope, K key) {
+		Key<K> k = new Key<K>(scope, key, generations.get(stripe(key)));
+		Flight<K, V> f = new Flight<K, V>(this, k, true);
+		Flight<K, V> old = inflight.putIfAbsent(k, f);
+		if (old != null) {
+			coalesced.incrementAndGet();
+			return old.follow();
+		}
+		return f;
+	}
+
+	/**
+	 * Stop later reads of a key from joining flights already in the air.
+	 * <p>
+	 * Called before a key is modified and again once the write is done.
+	 * Threads already following a flight still receive its value; threads
+	 * beginning a read afterwards start a new one.
+	 *
+	 * @param key
+	 *            the modified key, in every scope.
+	 */
+	void forget(K key) {
+		generations.incrementAndGet(stripe(key));
+	}
+
+	private static int stripe(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h & (GENERATIONS - 1);
+	}
+
+	/** @return number of reads satisfied by another thread's query. */
+	long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	private static class Key<K> {
+		final Object scope;
+
+		final K key;
+
+		final long generation;
+
+		Key(Object scope, K key, long generation) {
+			this.scope = scope;
+			this.key = key;
+			this.generation = generation;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = scope != null ? scope.hashCode() : 0;
+			return key.hashCode() * 31 + h;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other instanceof Key) {
+				Key<?> o = (Key<?>) other;
+				return key.equals(o.key) && generation == o.generation
+						&& (scope == null ? o.scope == null : scope
+								.equals(o.scope));
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * One read in flight.
+	 *
+	 * @param <K>
+	 *            type of the row key.
+	 * @param <V>
+	 *            type of the value.
+	 */
+	static class Flight<K, V> {
+		private final CsSingleFlight<K, V> table;
+
+		private final Key<K> key;
+
+		private final boolean leader;
+
+		private final CountDownLatch done;
+
+		private Flight<K, V> source;
+
+		private volatile V value;
+
+		private volatile DhtException error;
+
+		private Flight(CsSingleFlight<K, V> table, Key<K> key, boolean leader) {
+			this.table = table;
+			this.key = key;
+			this.leader = leader;
+			this.done = new CountDownLatch(1);
+		}
+
+		private Flight<K, V> follow() {
+			Flight<K, V> f = new Flight<K, V>(table, key, false);
+			f.source = this;
+			return f;
+		}
+
+		/** @return true if the caller must perform the read. */
+		boolean isLeader() {
+			return leader;
+		}
+
+		/**
+		 * Publish the value read by the leader.
+		 *
+		 * @param v
+		 *            the value; null if the key does not exist.
+		 */
+		void complete(V v) {
+			if (done.getCount() == 0)
+				return;
+			value = v;
+			table.inflight.remove(key, this);
+			done.countDown();
+		}
+
+		/**
+		 * Report the leader's read failed.
+		 *
+		 * @param err
+		 *            the failure, rethrown to every follower.
+		 */
+		void fail(DhtException err) {
+			if (done.getCount() == 0)
+				return;
+			error = err;
+			table.inflight.remove(key, this);
+			done.countDown();
+		}
+
+		/**
+		 * Fail the flight if the leader did not complete it.
+		 * <p>
+		 * Does nothing once the flight was completed or failed.
+		 */
+		void abandon() {
+			if (done.getCount() != 0)
+				fail(new DhtException("Read of " + key.key + " was abandoned"));
+		}
+
+		/**
+		 * Wait for the leader's value.
+		 *
+		 * @return the value; null if the key does not exist.
+		 * @throws DhtException
+		 *             the leader's read failed, or the wait was interrupted.
+		 */
+		V get() throws DhtException {
+			Flight<K, V> f = source != null ? source : this;
+			try {
+				f.done.await();
+			} catch (InterruptedException err) {
+				Thread.currentThread().interrupt();
+				throw new DhtException(err);
+			}
+			if (f.error != null)
+				throw new DhtException(f.error);
+			return f.value;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.storage.dht.DhtException;
+
+/**
+ * Fixed size thread pool for one class of work, with wait time metrics.
+ * <p>
+ * The queue is bounded. When it is full the submitting thread runs the task
+ * itself, which slows the producer down instead of failing the task. Once the
+ * pool is shut down new tasks are rejected.
+ */
+final class CsThreadPool extends ThreadPoolExecutor {
+	/** A task that must be told if it will never run. */
+	interface Task extends Runnable {
+		/**
+		 * Invoked instead of {@link #run()} when the pool stops first.
+		 *
+		 * @param err
+		 *            the reason the task did not run.
+		 */
+		void abort(DhtException err);
+	}
+
+	private final String name;
+
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	private final AtomicLong started = new AtomicLong();
+
+	private final AtomicLong callerRuns = new AtomicLong();
+
+	CsThreadPool(String name, int threads, int queueSize) {
+		super(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new Factory(name));
+		this.name = name;
+		allowCoreThreadTimeOut(true);
+		setRejectedExecutionHandler(new RejectedExecutionHandler() {
+			public void rejectedExecution(Runnable task, ThreadPoolExecutor e) {
+				if (e.isShutdown())
+					throw new RejectedExecutionException(name
+							+ " pool is shut down");
+				callerRuns.incrementAndGet();
+				task.run();
+			}
+		});
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		super.execute(new Timed(task));
+	}
+
+	/**
+	 * Shut down, giving queued and running tasks time to finish.
+	 * <p>
+	 * Tasks still queued when the time runs out are not run. A {@link Task}
+	 * is aborted and any other {@link Future} is cancelled, so no caller waits
+	 * for them forever.
+	 *
+	 * @param timeout
+	 *            milliseconds to wait for the queue to drain.
+	 */
+	void shutdown(long timeout) {
+		shutdown();
+		try {
+			if (awaitTermination(timeout, TimeUnit.MILLISECONDS))
+				return;
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+		}
+
+		DhtException err = new DhtException(name + " pool was shut down");
+		for (Runnable r : shutdownNow()) {
+			Runnable task = r instanceof Timed ? ((Timed) r).task : r;
+			if (task instanceof Task)
+				((Task) task).abort(err);
+			else if (task instanceof Future)
+				((Future<?>) task).cancel(false);
+		}
+	}
+
+	PoolStats getStatistics() {
+		long n = started.get();
+		double avgWait = n == 0 ? 0 : waitNanos.get() / 1e6 / n;
+		return new PoolStats(name, getPoolSize(), getActiveCount(),
+				getQueue().size(), getCompletedTaskCount(), avgWait,
+				callerRuns.get());
+	}
+
+	private class Timed implements Runnable {
+		private final Runnable task;
+
+		private final long queued;
+
+		Timed(Runnable task) {
+			this.task = task;
+			this.queued = System.nanoTime();
+		}
+
+		public void run() {
+			waitNanos.addAndGet(System.nanoTime() - queued);
+			started.incrementAndGet();
+			task.run();
+		}
+	}
+
+	private static class Factory implements ThreadFactory {
+		private final String name;
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		Factory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "JGit-Cassandra-" + name + "-"
+					+ next.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.apache.cassandra.thrift.TokenRange;
+
+/**
+ * Maps row keys to the token range of the ring that owns them.
+ * <p>
+ * The ring is read from the cluster on first use and again once a minute.
+ * Only the {@code RandomPartitioner} is understood; with any other partitioner,
+ * or while the ring cannot be read, every key maps to range 0.
+ */
+final class CsTokenRing {
+	private static final String RANDOM_PARTITIONER = "org.apache.cassandra.dht."
+			+ "RandomPartitioner";
+
+	private static final long REFRESH_MILLIS = 60 * 1000;
+
+	private final Cluster cluster;
+
+	private final String keyspace;
+
+	private volatile BigInteger[] ends;
+
+	private volatile long loadedAt;
+
+	private boolean unsupported;
+
+	CsTokenRing(Cluster cluster, String keyspace) {
+		this.cluster = cluster;
+		this.keyspace = keyspace;
+	}
+
+	/**
+	 * @param rowKey
+	 *            key of a row.
+	 * @return index of the token range owning the row.
+	 */
+	int rangeOf(byte[] rowKey) {
+		BigInteger[] e = ring();
+		if (e == null || e.length == 0)
+			return 0;
+
+		BigInteger token = new BigInteger(md5(rowKey)).abs();
+		int idx = Arrays.binarySearch(e, token);
+		if (idx < 0)
+			idx = -(idx + 1);
+		// Tokens past the last end token wrap around to the first range.
+		return idx < e.length ? idx : 0;
+	}
+
+	private BigInteger[] ring() {
+		if (System.currentTimeMillis() - loadedAt < REFRESH_MILLIS)
+			return ends;
+
+		synchronized (this) {
+			if (System.currentTimeMillis() - loadedAt < REFRESH_MILLIS)
+				return ends;
+			try {
+				if (!unsupported && !RANDOM_PARTITIONER.equals(cluster
+						.describePartitioner()))
+					unsupported = true;
+				ends = unsupported ? null : load();
+			} catch (HectorException err) {
+				ends = null;
+			}
+			loadedAt = System.currentTimeMillis();
+			return ends;
+		}
+	}
+
+	private BigInteger[] load() {
+		List<BigInteger> r = new ArrayList<BigInteger>();
+		for (TokenRange range : cluster.describeRing(keyspace))
+			r.add(new BigInteger(range.getEnd_token()));
+		Collections.sort(r);
+		return r.toArray(new BigInteger[r.size()]);
+	}
+
+	private static byte[] md5(byte[] key) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(key);
+		} catch (NoSuchAlgorithmException err) {
+			throw new IllegalStateException(err);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a {@link CsBuffer} starts sending its batch.
+ * <p>
+ * A batch is started once it reaches the batch size, holds the maximum number
+ * of mutations, or has been open longer than the linger time. In adaptive mode
+ * the batch size follows the observed {@code Mutator.execute()} latency: it
+ * grows by a quarter while full batches complete under the target latency,
+ * and is halved when a batch times out or takes more than twice the target.
+ * <p>
+ * One policy is shared by every buffer of a database, so what one push learns
+ * about the cluster is used by the next.
+ */
+final class CsWritePolicy {
+	private static final int MIN_BATCH_SIZE = 64 * 1024;
+
+	/** Room left in a Thrift frame for the envelope of a batch_mutate call. */
+	private static final int FRAME_RESERVE = 64 * 1024;
+
+	private final int bufferSize;
+
+	private final int maxMutations;
+
+	private final long linger;
+
+	private final boolean adaptive;
+
+	private final int frameLimit;
+
+	private final long targetLatency;
+
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private final AtomicLong retries = new AtomicLong();
+
+	private volatile int batchSize;
+
+	CsWritePolicy(CassandraDatabaseBuilder builder) {
+		bufferSize = builder.getWriteBufferSize();
+		maxMutations = builder.getWriteBatchMutations();
+		linger = builder.getWriteBatchLinger();
+		adaptive = builder.isWriteBatchAdaptive();
+		long frame = builder.getThriftFrameSize() - FRAME_RESERVE;
+		frameLimit = (int) Math.max(MIN_BATCH_SIZE,
+				Math.min(Integer.MAX_VALUE, frame));
+		targetLatency = TimeUnit.MILLISECONDS.toNanos(builder
+				.getWriteBatchLatency());
+
+		if (adaptive)
+			batchSize = Math.max(MIN_BATCH_SIZE, bufferSize / 4);
+		else
+			batchSize = bufferSize;
+	}
+
+	/** @return maximum bytes held by one buffer, including running batches. */
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	/** @return bytes at which a batch is started. */
+	int getBatchSize() {
+		return Math.min(batchSize, frameLimit);
+	}
+
+	/**
+	 * Test if a row may be added to a batch without exceeding a Thrift frame.
+	 *
+	 * @param batchBytes
+	 *            bytes already in the batch.
+	 * @param rowBytes
+	 *            size of the row.
+	 * @return true if the batch and the row fit in one frame.
+	 */
+	boolean fitsFrame(int batchBytes, int rowBytes) {
+		return (long) batchBytes + rowBytes <= frameLimit;
+	}
+
+	/**
+	 * Test if a batch should be started.
+	 *
+	 * @param bytes
+	 *            bytes queued in the batch.
+	 * @param mutations
+	 *            mutations queued in the batch.
+	 * @param opened
+	 *            {@code System.currentTimeMillis()} when the batch was opened.
+	 * @return true if the batch should be sent now.
+	 */
+	boolean isFull(int bytes, int mutations, long opened) {
+		if (getBatchSize() <= bytes)
+			return true;
+		if (0 < maxMutations && maxMutations <= mutations)
+			return true;
+		return 0 < linger && linger <= System.currentTimeMillis() - opened;
+	}
+
+	/**
+	 * Record the outcome of a batch.
+	 *
+	 * @param bytes
+	 *            size of the batch.
+	 * @param nanos
+	 *            time spent in {@code Mutator.execute()}.
+	 * @param timedOut
+	 *            true if the batch failed with a timeout.
+	 */
+	void executed(int bytes, long nanos, boolean timedOut) {
+		if (timedOut)
+			timeouts.incrementAndGet();
+		if (!adaptive)
+			return;
+
+		synchronized (this) {
+			int sz = batchSize;
+			if (timedOut || 2 * targetLatency < nanos)
+				sz = Math.max(MIN_BATCH_SIZE, sz / 2);
+			else if (nanos < targetLatency && sz / 2 <= bytes)
+				sz = Math.min(bufferSize, sz + sz / 4);
+			batchSize = sz;
+		}
+	}
+
+	/** Record a failed batch, or its halves, being sent again. */
+	void retried() {
+		retries.incrementAndGet();
+	}
+
+	/** @return number of times a failed batch was sent again. */
+	long getRetryCount() {
+		return retries.get();
+	}
+
+	/** @return number of batches that failed with a timeout. */
+	long getTimeoutCount() {
+		return timeouts.get();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.prettyprint.hector.api.exceptions.HInvalidRequestException;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HUnavailableException;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.exceptions.HectorTransportException;
+
+import org.eclipse.jgit.storage.dht.DhtException;
+
+/**
+ * Retry policy of one {@link CsBuffer}.
+ * <p>
+ * A failed batch may be retried after an exponential backoff with full jitter.
+ * Each buffer has a budget of retries shared by all of its batches, so a
+ * cluster that keeps failing ends the push instead of stalling it.
+ */
+final class CsWriteRetry {
+	private static final long MAX_BACKOFF = 10 * 1000;
+
+	private static final Random JITTER = new Random();
+
+	private final int maxAttempts;
+
+	private final long backoff;
+
+	private final AtomicInteger budget;
+
+	CsWriteRetry(int maxAttempts, long backoff, int budget) {
+		this.maxAttempts = maxAttempts;
+		this.backoff = backoff;
+		this.budget = new AtomicInteger(budget);
+	}
+
+	/**
+	 * @param err
+	 *            failure of a batch.
+	 * @return true if the same batch may succeed when sent again.
+	 */
+	static boolean isTransient(HectorException err) {
+		return err instanceof HTimedOutException
+				|| err instanceof HUnavailableException
+				|| err instanceof HectorTransportException;
+	}
+
+	/**
+	 * @param err
+	 *            failure of a batch.
+	 * @return true if smaller parts of the batch may succeed.
+	 */
+	static boolean isSplittable(HectorException err) {
+		return isTransient(err) || err instanceof HInvalidRequestException;
+	}
+
+	/**
+	 * Take one retry from the budget.
+	 *
+	 * @param attempt
+	 *            number of times this batch has already been retried.
+	 * @return true if the batch may be retried.
+	 */
+	boolean tryRetry(int attempt) {
+		if (maxAttempts <= attempt)
+			return false;
+		for (;;) {
+			int n = budget.get();
+			if (n <= 0)
+				return false;
+			if (budget.compareAndSet(n, n - 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Wait before a retry.
+	 *
+	 * @param attempt
+	 *            number of times this batch has already been retried.
+	 * @throws DhtException
+	 *             the thread was interrupted.
+	 */
+	void sleep(int attempt) throws DhtException {
+		long cap = Math.min(MAX_BACKOFF, backoff << Math.min(attempt, 16));
+		long delay = (long) (JITTER.nextDouble() * cap);
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			throw new DhtException(err);
+		}
+	}
+}
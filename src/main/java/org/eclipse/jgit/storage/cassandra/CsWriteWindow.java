@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.storage.dht.DhtException;
+
+/**
+ * Limits the write batches in flight to the cluster.
+ * <p>
+ * One window is shared by every {@link CsBuffer} of a database, bounding the
+ * memory held by mutations that have been handed to the executor but not yet
+ * accepted by Cassandra. A buffer starting a batch blocks while the window is
+ * full. A single batch larger than the whole window is admitted when nothing
+ * else is in flight, so it cannot wait forever.
+ */
+final class CsWriteWindow {
+	private final long maxBytes;
+
+	private final int maxBatches;
+
+	private long bytes;
+
+	private int batches;
+
+	private long blockedCount;
+
+	private long blockedNanos;
+
+	/**
+	 * @param maxBytes
+	 *            bytes of batches allowed in flight; 0 for no limit.
+	 * @param maxBatches
+	 *            batches allowed in flight; 0 for no limit.
+	 */
+	CsWriteWindow(long maxBytes, int maxBatches) {
+		this.maxBytes = maxBytes;
+		this.maxBatches = maxBatches;
+	}
+
+	/**
+	 * Reserve room for a batch, waiting until it fits.
+	 *
+	 * @param size
+	 *            size of the batch.
+	 * @throws DhtException
+	 *             the thread was interrupted while waiting.
+	 */
+	synchronized void acquire(int size) throws DhtException {
+		if (!fits(size)) {
+			long start = System.nanoTime();
+			blockedCount++;
+			try {
+				do {
+					wait();
+				} while (!fits(size));
+			} catch (InterruptedException err) {
+				Thread.currentThread().interrupt();
+				throw new DhtException(err);
+			} finally {
+				blockedNanos += System.nanoTime() - start;
+			}
+		}
+		bytes += size;
+		batches++;
+	}
+
+	/**
+	 * Return the room of a batch that has completed or failed.
+	 *
+	 * @param size
+	 *            size passed to {@link #acquire(int)}.
+	 */
+	synchronized void release(int size) {
+		bytes -= size;
+		batches--;
+		notifyAll();
+	}
+
+	private boolean fits(int size) {
+		if (batches == 0)
+			return true;
+		if (0 < maxBatches && maxBatches <= batches)
+			return false;
+		return maxBytes <= 0 || bytes + size <= maxBytes;
+	}
+
+	/** @return bytes of batches currently in flight. */
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** @return number of times a buffer waited for the window. */
+	synchronized long getBlockedCount() {
+		return blockedCount;
+	}
+
+	/** @return total milliseconds buffers spent waiting for the window. */
+	synchronized long getBlockedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+	}
+}
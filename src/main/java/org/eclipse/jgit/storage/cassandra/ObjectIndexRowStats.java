@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+/** Snapshot of the widths of ObjectIndex rows read from the cluster. */
+public class ObjectIndexRowStats {
+	private final long rowCount;
+
+	private final long columnCount;
+
+	private final long maxWidth;
+
+	private final long pagedCount;
+
+	private final long truncatedCount;
+
+	ObjectIndexRowStats(long rowCount, long columnCount, long maxWidth,
+			long pagedCount, long truncatedCount) {
+		this.rowCount = rowCount;
+		this.columnCount = columnCount;
+		this.maxWidth = maxWidth;
+		this.pagedCount = pagedCount;
+		this.truncatedCount = truncatedCount;
+	}
+
+	/** @return number of object rows read. */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/** @return average number of locations read per object. */
+	public double getAverageWidth() {
+		return rowCount == 0 ? 0.0 : ((double) columnCount) / rowCount;
+	}
+
+	/** @return most locations read for one object. */
+	public long getMaxWidth() {
+		return maxWidth;
+	}
+
+	/** @return rows wider than one column slice, read in several pages. */
+	public long getPagedCount() {
+		return pagedCount;
+	}
+
+	/** @return rows whose reading stopped at the location limit. */
+	public long getTruncatedCount() {
+		return truncatedCount;
+	}
+
+	@Override
+	public String toString() {
+		return "ObjectIndexRowStats[rows=" + rowCount //
+				+ ", averageWidth=" + getAverageWidth() //
+				+ ", maxWidth=" + maxWidth //
+				+ ", paged=" + pagedCount //
+				+ ", truncated=" + truncatedCount + "]";
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+/** Snapshot of the counters maintained by a client side thread pool. */
+public class PoolStats {
+	private final String name;
+
+	private final int threadCount;
+
+	private final int activeCount;
+
+	private final int queueDepth;
+
+	private final long completedCount;
+
+	private final double averageWait;
+
+	private final long callerRunCount;
+
+	PoolStats(String name, int threadCount, int activeCount, int queueDepth,
+			long completedCount, double averageWait, long callerRunCount) {
+		this.name = name;
+		this.threadCount = threadCount;
+		this.activeCount = activeCount;
+		this.queueDepth = queueDepth;
+		this.completedCount = completedCount;
+		this.averageWait = averageWait;
+		this.callerRunCount = callerRunCount;
+	}
+
+	/** @return name of the pool: reads, writes or background. */
+	public String getName() {
+		return name;
+	}
+
+	/** @return number of threads currently in the pool. */
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/** @return number of threads currently running a task. */
+	public int getActiveCount() {
+		return activeCount;
+	}
+
+	/** @return number of tasks waiting for a thread. */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/** @return number of tasks completed by the pool. */
+	public long getCompletedCount() {
+		return completedCount;
+	}
+
+	/** @return average milliseconds a task waited for a thread. */
+	public double getAverageWait() {
+		return averageWait;
+	}
+
+	/** @return number of tasks run by the submitter as the queue was full. */
+	public long getCallerRunCount() {
+		return callerRunCount;
+	}
+
+	@Override
+	public String toString() {
+		return "PoolStats[name=" + name //
+				+ ", threads=" + threadCount //
+				+ ", active=" + activeCount //
+				+ ", queued=" + queueDepth //
+				+ ", completed=" + completedCount //
+				+ ", averageWait=" + averageWait //
+				+ ", callerRuns=" + callerRunCount + "]";
+	}
+}
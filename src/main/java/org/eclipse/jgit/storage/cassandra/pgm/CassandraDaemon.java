@@ -101,6 +101,7 @@ class CassandraDaemon extends TextBuiltin {
 
 	protected void run() throws Exception {
 		PackConfig packConfig = new PackConfig();
+		CassandraDatabaseBuilder dbBuilder = new CassandraDatabaseBuilder();
 
 		if (configFile != null) {
 			if (!configFile.exists()) {
@@ -112,6 +113,7 @@ class CassandraDaemon extends TextBuiltin {
 			FileBasedConfig cfg = new FileBasedConfig(configFile, FS.DETECTED);
 			cfg.load();
 			packConfig.fromConfig(cfg);
+			dbBuilder.fromConfig(cfg);
 		}
 
 		int threads = packConfig.getThreads();
@@ -126,7 +128,7 @@ class CassandraDaemon extends TextBuiltin {
 				host != null ? new InetSocketAddress(host, port)
 						: new InetSocketAddress(port));
 
-		final CassandraDatabase db = new CassandraDatabaseBuilder() //
+		final CassandraDatabase db = dbBuilder //
 				.setURI(uri) //
 				.build();
 
@@ -70,9 +70,9 @@ class CassandraInit extends TextBuiltin {
 		DhtRepository repository = builder.build();
 		repository.create(true);
 
-		System.out.println("Created " + repository.getRepositoryKey().asString() + ":");
-		System.out.println("  cluster:    " + builder.getClusterName());
-		System.out.println("  keyspace:   " + builder.getKeyspaceName());
-		System.out.println("  repository: " + builder.getRepositoryName());
+		out.println("Created " + repository.getRepositoryKey().asString() + ":");
+		out.println("  cluster:    " + builder.getClusterName());
+		out.println("  keyspace:   " + builder.getKeyspaceName());
+		out.println("  repository: " + builder.getRepositoryName());
 	}
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra.pgm;
+
+import java.io.File;
+
+import org.eclipse.jgit.pgm.TextBuiltin;
+import org.eclipse.jgit.storage.cassandra.CassandraDatabase;
+import org.eclipse.jgit.storage.cassandra.CassandraDatabaseBuilder;
+import org.eclipse.jgit.storage.cassandra.CassandraRepositoryBuilder;
+import org.eclipse.jgit.storage.dht.DhtRepository;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+class CassandraRebuildBloom extends TextBuiltin {
+	@Option(name = "--config-file", metaVar = "metaVar_configFile", usage = "usage_configFile")
+	File configFile;
+
+	@Argument(index = 0, required = true, metaVar = "git+cassandra://")
+	String uri;
+
+	@Override
+	protected boolean requiresRepository() {
+		return false;
+	}
+
+	@Override
+	protected void run() throws Exception {
+		CassandraDatabaseBuilder dbBuilder = new CassandraDatabaseBuilder();
+		if (configFile != null) {
+			FileBasedConfig cfg = new FileBasedConfig(configFile, FS.DETECTED);
+			cfg.load();
+			dbBuilder.fromConfig(cfg);
+		}
+		if (dbBuilder.getBloomFilterSize() <= 0)
+			dbBuilder.setBloomFilterSize(
+					CassandraDatabaseBuilder.DEFAULT_BLOOM_FILTER_SIZE);
+
+		CassandraDatabase db = dbBuilder.setURI(uri).build();
+		Main.DB = db;
+
+		DhtRepository repository = new CassandraRepositoryBuilder() //
+				.setURI(uri) //
+				.setDatabase(db) //
+				.setMustExist(true) //
+				.build();
+
+		long cnt = db.rebuildBloomFilter(repository.getRepositoryKey());
+		out.println("Rebuilt filter of "
+				+ repository.getRepositoryKey().asString() + ": " + cnt
+				+ " objects");
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+public class CsBloomFilterTest extends TestCase {
+	private Random rng;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		rng = new Random(42);
+	}
+
+	public void testEmptyFilterContainsNothing() {
+		CsBloomFilter f = CsBloomFilter.create(1000);
+		for (int i = 0; i < 100; i++)
+			assertFalse(f.mightContain(randomId()));
+		assertEquals(0, f.getObjectCount());
+		assertEquals(0.0, f.getEstimatedFalsePositiveRate());
+	}
+
+	public void testNoFalseNegatives() {
+		CsBloomFilter f = CsBloomFilter.create(1000);
+		List<ObjectId> added = add(f, 1000);
+		for (ObjectId id : added)
+			assertTrue(f.mightContain(id));
+		assertEquals(1000, f.getObjectCount());
+	}
+
+	public void testFalsePositiveRateNearTarget() {
+		CsBloomFilter f = CsBloomFilter.create(10000);
+		add(f, 10000);
+
+		int hits = 0;
+		int probes = 20000;
+		for (int i = 0; i < probes; i++) {
+			if (f.mightContain(randomId()))
+				hits++;
+		}
+		// Sized for 1%; allow generous slack for the random sample.
+		assertTrue("rate " + hits + "/" + probes, hits < probes * 3 / 100);
+		assertTrue(f.getEstimatedFalsePositiveRate() < 0.03);
+	}
+
+	public void testBytesRoundTrip() {
+		CsBloomFilter f = CsBloomFilter.create(2000);
+		List<ObjectId> added = add(f, 500);
+
+		CsBloomFilter r = CsBloomFilter.fromBytes(f.asBytes());
+		assertTrue(r.sameShape(f));
+		assertEquals(500, r.getObjectCount());
+		for (ObjectId id : added)
+			assertTrue(r.mightContain(id));
+	}
+
+	public void testFromBytesRejectsGarbage() {
+		byte[] raw = CsBloomFilter.create(1000).asBytes();
+
+		byte[] badMagic = raw.clone();
+		badMagic[0] = 'X';
+		assertInvalid(badMagic);
+
+		byte[] truncated = new byte[raw.length - 8];
+		System.arraycopy(raw, 0, truncated, 0, truncated.length);
+		assertInvalid(truncated);
+
+		assertInvalid(new byte[4]);
+	}
+
+	public void testShape() {
+		CsBloomFilter a = CsBloomFilter.create(1000);
+		assertTrue(a.sameShape(CsBloomFilter.create(1000)));
+		assertFalse(a.sameShape(CsBloomFilter.create(100000)));
+	}
+
+	public void testMerge() {
+		CsBloomFilter a = CsBloomFilter.create(1000);
+		CsBloomFilter b = CsBloomFilter.create(1000);
+		List<ObjectId> inA = add(a, 100);
+		List<ObjectId> inB = add(b, 300);
+
+		a.merge(b);
+		for (ObjectId id : inA)
+			assertTrue(a.mightContain(id));
+		for (ObjectId id : inB)
+			assertTrue(a.mightContain(id));
+		assertEquals(300, a.getObjectCount());
+	}
+
+	private List<ObjectId> add(CsBloomFilter f, int n) {
+		List<ObjectId> r = new ArrayList<ObjectId>(n);
+		for (int i = 0; i < n; i++) {
+			ObjectId id = randomId();
+			f.add(id);
+			r.add(id);
+		}
+		return r;
+	}
+
+	private ObjectId randomId() {
+		byte[] raw = new byte[20];
+		rng.nextBytes(raw);
+		return ObjectId.fromRaw(raw);
+	}
+
+	private static void assertInvalid(byte[] raw) {
+		try {
+			CsBloomFilter.fromBytes(raw);
+			fail("accepted invalid filter");
+		} catch (IllegalArgumentException expected) {
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.PackChunk;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+
+public class CsChunkCacheTest extends TestCase {
+	private static final int MB = 1024 * 1024;
+
+	/** Small enough to use a single segment. */
+	private static final long LIMIT = 4 * MB;
+
+	private CsChunkCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		cache = new CsChunkCache(LIMIT);
+	}
+
+	public void testMissThenHit() {
+		assertNull(cache.get(key(1)));
+		PackChunk.Members m = chunk(1, MB);
+		put(m);
+		assertSame(m, cache.get(key(1)));
+
+		CacheStats s = cache.getStatistics();
+		assertEquals(1, s.getHitCount());
+		assertEquals(1, s.getMissCount());
+		assertEquals(1, s.getEntryCount());
+		assertEquals(MB, s.getWeight());
+	}
+
+	public void testEvictsLeastRecentlyUsedByWeight() {
+		for (int i = 1; i <= 4; i++)
+			put(chunk(i, MB));
+		assertNotNull(cache.get(key(1)));
+
+		put(chunk(5, MB));
+		assertNotNull(cache.get(key(1)));
+		assertNull(cache.get(key(2)));
+		assertNotNull(cache.get(key(5)));
+		assertEquals(1, cache.getStatistics().getEvictionCount());
+		assertEquals(LIMIT, cache.getStatistics().getWeight());
+	}
+
+	public void testContainsDoesNotTouchOrder() {
+		for (int i = 1; i <= 4; i++)
+			put(chunk(i, MB));
+		assertTrue(cache.contains(key(1)));
+		assertFalse(cache.contains(key(9)));
+
+		put(chunk(5, MB));
+		assertFalse(cache.contains(key(1)));
+		assertEquals(0, cache.getStatistics().getHitCount());
+		assertEquals(0, cache.getStatistics().getMissCount());
+	}
+
+	public void testChunkLargerThanSegmentIsNotCached() {
+		put(chunk(1, (int) LIMIT + 1));
+		assertNull(cache.get(key(1)));
+	}
+
+	public void testRemove() {
+		put(chunk(1, MB));
+		cache.remove(key(1));
+		assertNull(cache.get(key(1)));
+		assertEquals(0, cache.getStatistics().getWeight());
+	}
+
+	public void testReadBeforeRemoveIsNotCached() {
+		long gen = cache.generation(key(1));
+		cache.remove(key(1));
+		cache.put(chunk(1, MB), gen);
+		assertNull(cache.get(key(1)));
+
+		put(chunk(1, MB));
+		assertNotNull(cache.get(key(1)));
+	}
+
+	public void testSliceIsWeighedByBackingArray() {
+		PackChunk.Members m = new PackChunk.Members();
+		m.setChunkKey(key(1));
+		m.setChunkData(new byte[MB], 0, 10);
+		assertEquals(MB, CsChunkCache.weigh(m));
+
+		byte[] buf = new byte[MB];
+		m.setChunkData(buf, 0, 10);
+		m.setChunkIndex(buf, 10, 10);
+		assertEquals(MB, CsChunkCache.weigh(m));
+
+		m.setChunkIndex(new byte[100]);
+		assertEquals(MB + 100, CsChunkCache.weigh(m));
+	}
+
+	private void put(PackChunk.Members m) {
+		cache.put(m, cache.generation(m.getChunkKey()));
+	}
+
+	private static PackChunk.Members chunk(int n, int size) {
+		PackChunk.Members m = new PackChunk.Members();
+		m.setChunkKey(key(n));
+		m.setChunkData(new byte[size]);
+		return m;
+	}
+
+	private static ChunkKey key(int n) {
+		byte[] raw = new byte[20];
+		raw[19] = (byte) n;
+		return ChunkKey.create(RepositoryKey.create(1), ObjectId.fromRaw(raw));
+	}
+}
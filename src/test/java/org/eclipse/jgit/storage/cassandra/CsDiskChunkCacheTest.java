@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.PackChunk;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+
+public class CsDiskChunkCacheTest extends TestCase {
+	/** Two segments of 32 KiB each. */
+	private static final long LIMIT = 64 * 1024;
+
+	private static final int DATA_SIZE = 10000;
+
+	private Random rng;
+
+	private File dir;
+
+	private CsDiskChunkCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		rng = new Random(7);
+		dir = File.createTempFile("chunkcache", "");
+		assertTrue(dir.delete());
+		cache = new CsDiskChunkCache(dir, LIMIT);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		cache.close();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				f.delete();
+		}
+		dir.delete();
+		super.tearDown();
+	}
+
+	public void testMissOnEmptyCache() {
+		assertNull(cache.get(key(1)));
+		assertEquals(1, cache.getStatistics().getMissCount());
+	}
+
+	public void testPutThenGet() {
+		PackChunk.Members m = chunk(1, true);
+		put(m);
+
+		PackChunk.Members r = cache.get(key(1));
+		assertNotNull(r);
+		assertEquals(key(1), r.getChunkKey());
+		assertTrue(Arrays.equals(m.getChunkData(), r.getChunkData()));
+		assertTrue(Arrays.equals(m.getChunkIndex(), r.getChunkIndex()));
+		assertEquals(1, cache.getStatistics().getHitCount());
+	}
+
+	public void testChunkWithoutIndex() {
+		PackChunk.Members m = chunk(1, false);
+		put(m);
+
+		PackChunk.Members r = cache.get(key(1));
+		assertTrue(Arrays.equals(m.getChunkData(), r.getChunkData()));
+		assertFalse(r.hasChunkIndex());
+	}
+
+	public void testPutReplacesEntry() {
+		put(chunk(1, false));
+		PackChunk.Members m = chunk(1, false);
+		put(m);
+
+		assertTrue(Arrays.equals(m.getChunkData(), cache.get(key(1))
+				.getChunkData()));
+		assertEquals(1, cache.getStatistics().getEntryCount());
+	}
+
+	public void testRemove() {
+		put(chunk(1, false));
+		cache.remove(key(1));
+		assertNull(cache.get(key(1)));
+	}
+
+	public void testChunkLargerThanSegmentIsSkipped() {
+		PackChunk.Members m = new PackChunk.Members();
+		m.setChunkKey(key(1));
+		m.setChunkData(new byte[(int) LIMIT]);
+		put(m);
+		assertNull(cache.get(key(1)));
+	}
+
+	public void testOldestSegmentIsRecycled() {
+		for (int i = 1; i <= 8; i++)
+			put(chunk(i, false));
+
+		// Each segment holds three chunks; the seventh recycled the first.
+		assertNull(cache.get(key(1)));
+		assertNull(cache.get(key(3)));
+		assertNotNull(cache.get(key(4)));
+		assertNotNull(cache.get(key(8)));
+		assertEquals(3, cache.getStatistics().getEvictionCount());
+	}
+
+	public void testEntriesSurviveReopen() throws Exception {
+		PackChunk.Members m = chunk(1, true);
+		put(m);
+		put(chunk(2, false));
+		cache.remove(key(2));
+		cache.close();
+
+		cache = new CsDiskChunkCache(dir, LIMIT);
+		PackChunk.Members r = cache.get(key(1));
+		assertNotNull(r);
+		assertTrue(Arrays.equals(m.getChunkData(), r.getChunkData()));
+		assertTrue(Arrays.equals(m.getChunkIndex(), r.getChunkIndex()));
+		assertNull(cache.get(key(2)));
+	}
+
+	public void testReopenAppendsToNewestSegment() throws Exception {
+		for (int i = 1; i <= 7; i++)
+			put(chunk(i, false));
+		cache.close();
+
+		cache = new CsDiskChunkCache(dir, LIMIT);
+		put(chunk(8, false));
+		put(chunk(9, false));
+		assertNotNull(cache.get(key(7)));
+		assertNotNull(cache.get(key(9)));
+		assertNotNull(cache.get(key(4)));
+	}
+
+	public void testCorruptEntryIsDiscarded() throws Exception {
+		PackChunk.Members m = chunk(1, false);
+		put(m);
+		cache.close();
+
+		// Flip the last data byte of the first entry of the first segment.
+		int keyLen = key(1).asBytes().length;
+		long pos = 16 + 24 + keyLen + DATA_SIZE - 1;
+		flip(new File(dir, "chunks-0000.seg"), pos);
+
+		cache = new CsDiskChunkCache(dir, LIMIT);
+		assertNull(cache.get(key(1)));
+		assertEquals(1, cache.getCorruptCount());
+		assertNull(cache.get(key(1)));
+		assertEquals(1, cache.getCorruptCount());
+	}
+
+	public void testCorruptLengthIsDiscarded() throws Exception {
+		put(chunk(1, true));
+		cache.close();
+
+		// Change the index length of the first entry; it still fits the
+		// segment, but no longer matches the CRC.
+		flip(new File(dir, "chunks-0000.seg"), 16 + 12 + 3);
+
+		cache = new CsDiskChunkCache(dir, LIMIT);
+		assertNull(cache.get(key(1)));
+		assertEquals(1, cache.getCorruptCount());
+	}
+
+	public void testDirectoryIsLocked() {
+		try {
+			new CsDiskChunkCache(dir, LIMIT);
+			fail("second cache opened a locked directory");
+		} catch (DhtException err) {
+			// Expected.
+		}
+		put(chunk(1, false));
+		assertNotNull(cache.get(key(1)));
+	}
+
+	public void testReadBeforeRemoveIsNotStored() {
+		long gen = cache.generation(key(1));
+		cache.remove(key(1));
+		cache.put(chunk(1, false), gen);
+		assertNull(cache.get(key(1)));
+
+		put(chunk(1, false));
+		assertNotNull(cache.get(key(1)));
+	}
+
+	private void put(PackChunk.Members m) {
+		cache.put(m, cache.generation(m.getChunkKey()));
+	}
+
+	private PackChunk.Members chunk(int n, boolean withIndex) {
+		PackChunk.Members m = new PackChunk.Members();
+		m.setChunkKey(key(n));
+		m.setChunkData(random(DATA_SIZE));
+		if (withIndex)
+			m.setChunkIndex(random(100));
+		return m;
+	}
+
+	private byte[] random(int len) {
+		byte[] b = new byte[len];
+		rng.nextBytes(b);
+		return b;
+	}
+
+	private static ChunkKey key(int n) {
+		byte[] raw = new byte[20];
+		raw[19] = (byte) n;
+		return ChunkKey.create(RepositoryKey.create(1), ObjectId.fromRaw(raw));
+	}
+
+	private static void flip(File path, long pos) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(path, "rw");
+		try {
+			f.seek(pos);
+			int b = f.read();
+			f.seek(pos);
+			f.write(~b);
+		} finally {
+			f.close();
+		}
+	}
+}
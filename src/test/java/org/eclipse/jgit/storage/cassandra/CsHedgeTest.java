@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class CsHedgeTest extends TestCase {
+	private CsHedge hedge;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		hedge = new CsHedge(95, 1, 4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		hedge.shutdown();
+		super.tearDown();
+	}
+
+	public void testPercentile() {
+		long[] s = new long[100];
+		for (int i = 0; i < s.length; i++)
+			s[i] = i + 1;
+
+		assertEquals(95, CsHedge.percentile(s, 95));
+		assertEquals(50, CsHedge.percentile(s, 50));
+		assertEquals(100, CsHedge.percentile(s, 100));
+		assertEquals(1, CsHedge.percentile(s, 0));
+		assertEquals(7, CsHedge.percentile(new long[] { 7 }, 99));
+	}
+
+	public void testPercentileRoundsUp() {
+		long[] s = { 10, 20, 30, 40 };
+		assertEquals(10, CsHedge.percentile(s, 25));
+		assertEquals(20, CsHedge.percentile(s, 26));
+		assertEquals(40, CsHedge.percentile(s, 99.9));
+	}
+
+	public void testNoHedgeUntilEnoughSamples() throws Exception {
+		assertEquals("slow", hedge.read("cf", new Callable<String>() {
+			public String call() throws Exception {
+				Thread.sleep(20);
+				return "slow";
+			}
+		}));
+		assertEquals(0, hedge.getHedgedCount());
+	}
+
+	public void testSlowReadIsHedged() throws Exception {
+		warmUp("cf");
+
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		String r = hedge.read("cf", new Callable<String>() {
+			public String call() throws Exception {
+				if (calls.incrementAndGet() == 1) {
+					try {
+						Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+					} catch (InterruptedException err) {
+						cancelled.countDown();
+						throw err;
+					}
+					return "first";
+				}
+				return "second";
+			}
+		});
+
+		assertEquals("second", r);
+		assertEquals(1, hedge.getHedgedCount());
+		assertEquals(1, hedge.getWonCount());
+		assertTrue("loser was not cancelled", cancelled.await(10,
+				TimeUnit.SECONDS));
+	}
+
+	public void testFamiliesAreTimedSeparately() throws Exception {
+		warmUp("fast");
+
+		assertEquals("slow", hedge.read("other", new Callable<String>() {
+			public String call() throws Exception {
+				Thread.sleep(20);
+				return "slow";
+			}
+		}));
+		assertEquals(0, hedge.getHedgedCount());
+	}
+
+	public void testFailureOfEveryCopyIsReported() throws Exception {
+		warmUp("cf");
+
+		final AtomicInteger calls = new AtomicInteger();
+		try {
+			hedge.read("cf", new Callable<String>() {
+				public String call() throws Exception {
+					int n = calls.incrementAndGet();
+					if (n == 1)
+						Thread.sleep(50);
+					throw new IllegalStateException("copy " + n);
+				}
+			});
+			fail("read did not fail");
+		} catch (IllegalStateException err) {
+			assertEquals("copy 2", err.getMessage());
+		}
+		assertEquals(2, calls.get());
+	}
+
+	private void warmUp(String family) throws Exception {
+		Callable<String> fast = new Callable<String>() {
+			public String call() {
+				return "fast";
+			}
+		};
+		for (int i = 0; i < 128; i++)
+			hedge.read(family, fast);
+		assertEquals(0, hedge.getHedgedCount());
+	}
+}
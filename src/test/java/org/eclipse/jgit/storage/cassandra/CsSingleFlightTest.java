@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.storage.cassandra.CsSingleFlight.Flight;
+import org.eclipse.jgit.storage.dht.DhtException;
+
+public class CsSingleFlightTest extends TestCase {
+	private CsSingleFlight<String, String> table;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		table = new CsSingleFlight<String, String>();
+	}
+
+	public void testFirstReaderLeads() {
+		assertTrue(table.begin("s", "a").isLeader());
+		assertTrue(table.begin("s", "b").isLeader());
+		assertEquals(0, table.getCoalescedCount());
+	}
+
+	public void testFollowerReceivesLeaderValue() throws Exception {
+		Flight<String, String> lead = table.begin("s", "a");
+		Flight<String, String> follow = table.begin("s", "a");
+		assertFalse(follow.isLeader());
+		assertEquals(1, table.getCoalescedCount());
+
+		lead.complete("value");
+		assertEquals("value", follow.get());
+		assertEquals("value", lead.get());
+	}
+
+	public void testFollowerWaitsForLeader() throws Exception {
+		Flight<String, String> lead = table.begin("s", "a");
+		final Flight<String, String> follow = table.begin("s", "a");
+		final AtomicReference<String> got = new AtomicReference<String>();
+		final CountDownLatch done = new CountDownLatch(1);
+
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					got.set(follow.get());
+				} catch (DhtException err) {
+					got.set("failed");
+				}
+				done.countDown();
+			}
+		};
+		t.start();
+		assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+
+		lead.complete("value");
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("value", got.get());
+	}
+
+	public void testCompletedFlightIsNotJoined() {
+		table.begin("s", "a").complete("old");
+		assertTrue(table.begin("s", "a").isLeader());
+	}
+
+	public void testScopesAreSeparate() {
+		table.begin("one", "a");
+		assertTrue(table.begin("two", "a").isLeader());
+		assertTrue(table.begin(null, "a").isLeader());
+		assertFalse(table.begin(null, "a").isLeader());
+	}
+
+	public void testFailureIsRethrown() {
+		Flight<String, String> lead = table.begin("s", "a");
+		Flight<String, String> follow = table.begin("s", "a");
+		lead.fail(new DhtException("boom"));
+
+		try {
+			follow.get();
+			fail("follower did not see the failure");
+		} catch (DhtException err) {
+			assertEquals("boom", err.getCause().getMessage());
+		}
+		assertTrue(table.begin("s", "a").isLeader());
+	}
+
+	public void testAbandonReleasesFollowers() {
+		Flight<String, String> lead = table.begin("s", "a");
+		Flight<String, String> follow = table.begin("s", "a");
+		lead.abandon();
+
+		try {
+			follow.get();
+			fail("abandoned flight returned a value");
+		} catch (DhtException expected) {
+			// Expected.
+		}
+		assertTrue(table.begin("s", "a").isLeader());
+	}
+
+	public void testAbandonAfterCompleteKeepsValue() throws Exception {
+		Flight<String, String> lead = table.begin("s", "a");
+		Flight<String, String> follow = table.begin("s", "a");
+		lead.complete("value");
+		lead.abandon();
+		assertEquals("value", follow.get());
+	}
+
+	public void testForgetStartsNewFlight() throws Exception {
+		Flight<String, String> lead = table.begin("one", "a");
+		Flight<String, String> follow = table.begin("one", "a");
+		table.begin("two", "a");
+		Flight<String, String> other = table.begin("one", "b");
+
+		table.forget("a");
+		assertTrue(table.begin("one", "a").isLeader());
+		assertTrue(table.begin("two", "a").isLeader());
+		assertFalse(table.begin("one", "b").isLeader());
+
+		// The old flight still serves the thread that joined it.
+		lead.complete("old");
+		assertEquals("old", follow.get());
+		other.complete(null);
+	}
+
+	public void testOldFlightDoesNotEndNewOne() throws Exception {
+		Flight<String, String> old = table.begin("s", "a");
+		table.forget("a");
+		Flight<String, String> lead = table.begin("s", "a");
+		assertTrue(lead.isLeader());
+
+		old.complete("old");
+		Flight<String, String> follow = table.begin("s", "a");
+		assertFalse(follow.isLeader());
+		lead.complete("new");
+		assertEquals("new", follow.get());
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.apache.cassandra.thrift.TokenRange;
+
+public class CsTokenRingTest extends TestCase {
+	private static final String RANDOM = "org.apache.cassandra.dht."
+			+ "RandomPartitioner";
+
+	private static final byte[] KEY = { 'r', 'o', 'w' };
+
+	private String partitioner;
+
+	private List<BigInteger> ends;
+
+	private int describeCalls;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		partitioner = RANDOM;
+		ends = new ArrayList<BigInteger>();
+	}
+
+	public void testKeyMapsToFirstEndNotBelowItsToken() throws Exception {
+		BigInteger t = token(KEY);
+		ends.add(t.add(BigInteger.TEN));
+		ends.add(t.subtract(BigInteger.ONE));
+		ends.add(t.add(BigInteger.ONE));
+
+		// Ends are sorted: t - 1, t + 1, t + 10.
+		assertEquals(1, ring().rangeOf(KEY));
+	}
+
+	public void testKeyOnEndTokenBelongsToThatRange() throws Exception {
+		BigInteger t = token(KEY);
+		ends.add(t.subtract(BigInteger.ONE));
+		ends.add(t);
+		assertEquals(1, ring().rangeOf(KEY));
+	}
+
+	public void testTokenPastLastEndWrapsAround() throws Exception {
+		BigInteger t = token(KEY);
+		ends.add(t.subtract(BigInteger.TEN));
+		ends.add(t.subtract(BigInteger.ONE));
+		assertEquals(0, ring().rangeOf(KEY));
+	}
+
+	public void testOtherPartitionerUsesOneRange() throws Exception {
+		partitioner = "org.apache.cassandra.dht.ByteOrderedPartitioner";
+		BigInteger t = token(KEY);
+		ends.add(t.subtract(BigInteger.ONE));
+		ends.add(t);
+
+		CsTokenRing ring = ring();
+		assertEquals(0, ring.rangeOf(KEY));
+		assertEquals(0, ring.rangeOf(KEY));
+		assertEquals(0, describeCalls);
+	}
+
+	public void testUnreadableRingUsesOneRange() {
+		ends = null;
+		assertEquals(0, ring().rangeOf(KEY));
+	}
+
+	public void testRingIsCached() throws Exception {
+		ends.add(token(KEY));
+		CsTokenRing ring = ring();
+		ring.rangeOf(KEY);
+		ring.rangeOf(KEY);
+		assertEquals(1, describeCalls);
+	}
+
+	private CsTokenRing ring() {
+		Cluster c = (Cluster) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class[] { Cluster.class },
+				new InvocationHandler() {
+					public Object invoke(Object p, Method m, Object[] a) {
+						if (m.getName().equals("describePartitioner"))
+							return partitioner;
+						if (m.getName().equals("describeRing"))
+							return describeRing();
+						if (m.getName().equals("toString"))
+							return "FakeCluster";
+						throw new UnsupportedOperationException(m.getName());
+					}
+				});
+		return new CsTokenRing(c, "git");
+	}
+
+	private List<TokenRange> describeRing() {
+		describeCalls++;
+		if (ends == null)
+			throw new HectorException("ring unavailable");
+
+		// Report the ranges out of order, as a cluster may.
+		List<TokenRange> r = new ArrayList<TokenRange>();
+		for (BigInteger end : ends)
+			r.add(new TokenRange("0", end.toString(), Collections
+					.<String> emptyList()));
+		return r;
+	}
+
+	private static BigInteger token(byte[] key) throws Exception {
+		byte[] md5 = MessageDigest.getInstance("MD5").digest(key);
+		return new BigInteger(md5).abs();
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class CsWritePolicyTest extends TestCase {
+	private static final int MB = 1024 * 1024;
+
+	private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private CassandraDatabaseBuilder builder;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		builder = new CassandraDatabaseBuilder();
+		builder.setWriteBufferSize(8 * MB);
+		builder.setWriteBatchLatency(100);
+		builder.setThriftFrameSize(15 * MB);
+	}
+
+	public void testFixedBatchUsesBuffer() {
+		CsWritePolicy p = new CsWritePolicy(builder);
+		assertEquals(8 * MB, p.getBatchSize());
+
+		p.executed(8 * MB, 10 * TARGET, true);
+		assertEquals(8 * MB, p.getBatchSize());
+		assertEquals(1, p.getTimeoutCount());
+	}
+
+	public void testBatchLimitedByFrame() {
+		builder.setThriftFrameSize(MB);
+		CsWritePolicy p = new CsWritePolicy(builder);
+		assertTrue(p.getBatchSize() < MB);
+		assertTrue(p.fitsFrame(0, MB / 2));
+		assertFalse(p.fitsFrame(MB / 2, MB / 2));
+		assertFalse(p.fitsFrame(Integer.MAX_VALUE, Integer.MAX_VALUE));
+	}
+
+	public void testAdaptiveGrowsWhenFast() {
+		builder.setWriteBatchAdaptive(true);
+		CsWritePolicy p = new CsWritePolicy(builder);
+		int start = p.getBatchSize();
+		assertEquals(2 * MB, start);
+
+		p.executed(start, TARGET / 2, false);
+		assertEquals(start + start / 4, p.getBatchSize());
+
+		for (int i = 0; i < 50; i++)
+			p.executed(p.getBatchSize(), TARGET / 2, false);
+		assertEquals(8 * MB, p.getBatchSize());
+	}
+
+	public void testAdaptiveIgnoresSmallBatches() {
+		builder.setWriteBatchAdaptive(true);
+		CsWritePolicy p = new CsWritePolicy(builder);
+		int start = p.getBatchSize();
+
+		p.executed(1024, TARGET / 2, false);
+		assertEquals(start, p.getBatchSize());
+	}
+
+	public void testAdaptiveHalvesWhenSlow() {
+		builder.setWriteBatchAdaptive(true);
+		CsWritePolicy p = new CsWritePolicy(builder);
+		int start = p.getBatchSize();
+
+		p.executed(start, 3 * TARGET, false);
+		assertEquals(start / 2, p.getBatchSize());
+
+		p.executed(start, TARGET / 2, true);
+		assertEquals(start / 4, p.getBatchSize());
+		assertEquals(1, p.getTimeoutCount());
+
+		for (int i = 0; i < 50; i++)
+			p.executed(start, 0, true);
+		assertEquals(64 * 1024, p.getBatchSize());
+	}
+
+	public void testIsFull() {
+		builder.setWriteBatchMutations(10);
+		CsWritePolicy p = new CsWritePolicy(builder);
+		long now = System.currentTimeMillis();
+
+		assertFalse(p.isFull(1024, 1, now));
+		assertTrue(p.isFull(p.getBatchSize(), 1, now));
+		assertTrue(p.isFull(1024, 10, now));
+	}
+
+	public void testIsFullAfterLinger() {
+		builder.setWriteBatchLinger(50);
+		CsWritePolicy p = new CsWritePolicy(builder);
+		long now = System.currentTimeMillis();
+
+		assertFalse(p.isFull(1024, 1, now));
+		assertTrue(p.isFull(1024, 1, now - 60));
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.cassandra;
+
+import junit.framework.TestCase;
+
+import me.prettyprint.hector.api.exceptions.HInvalidRequestException;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HUnavailableException;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.exceptions.HectorTransportException;
+
+public class CsWriteRetryTest extends TestCase {
+	public void testTransientFailures() {
+		assertTrue(CsWriteRetry.isTransient(new HTimedOutException("t")));
+		assertTrue(CsWriteRetry.isTransient(new HUnavailableException("u")));
+		assertTrue(CsWriteRetry.isTransient(new HectorTransportException("c")));
+		assertFalse(CsWriteRetry
+				.isTransient(new HInvalidRequestException("i")));
+		assertFalse(CsWriteRetry.isTransient(new HectorException("n")));
+	}
+
+	public void testSplittableFailures() {
+		assertTrue(CsWriteRetry.isSplittable(new HTimedOutException("t")));
+		assertTrue(CsWriteRetry
+				.isSplittable(new HInvalidRequestException("i")));
+		assertFalse(CsWriteRetry.isSplittable(new HectorException("n")));
+	}
+
+	public void testAttemptLimit() {
+		CsWriteRetry r = new CsWriteRetry(3, 1, 100);
+		assertTrue(r.tryRetry(0));
+		assertTrue(r.tryRetry(2));
+		assertFalse(r.tryRetry(3));
+	}
+
+	public void testBudgetIsShared() {
+		CsWriteRetry r = new CsWriteRetry(10, 1, 2);
+		assertTrue(r.tryRetry(0));
+		assertTrue(r.tryRetry(0));
+		assertFalse(r.tryRetry(0));
+		assertFalse(r.tryRetry(1));
+	}
+
+	public void testNoRetries() {
+		assertFalse(new CsWriteRetry(0, 1, 100).tryRetry(0));
+		assertFalse(new CsWriteRetry(3, 1, 0).tryRetry(0));
+	}
+
+	public void testSleepIsBounded() throws Exception {
+		CsWriteRetry r = new CsWriteRetry(3, 10, 100);
+		long start = System.currentTimeMillis();
+		r.sleep(0);
+		r.sleep(1);
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+}